@@ -32,9 +32,14 @@ import net.citizensnpcs.command.command.TemplateCommands;
 import net.citizensnpcs.command.command.TraitCommands;
 import net.citizensnpcs.command.command.WaypointCommands;
 import net.citizensnpcs.editor.Editor;
+import net.citizensnpcs.npc.ActivationTier;
 import net.citizensnpcs.npc.CitizensNPCRegistry;
 import net.citizensnpcs.npc.CitizensTraitFactory;
 import net.citizensnpcs.npc.NPCSelector;
+import net.citizensnpcs.npc.ai.AStarNavigationStrategy;
+import net.citizensnpcs.npc.ai.CitizensNavigator;
+import net.citizensnpcs.npc.ai.IncrementalPathPlanner;
+import net.citizensnpcs.npc.ai.SnapshotBlockSource;
 import net.citizensnpcs.util.Messages;
 import net.citizensnpcs.util.Messaging;
 import net.citizensnpcs.util.NMS;
@@ -50,8 +55,6 @@ import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.RegisteredServiceProvider;
 import org.bukkit.plugin.java.JavaPlugin;
 
-import com.google.common.collect.Iterables;
-
 public class Citizens extends JavaPlugin implements CitizensPlugin {
     private final CommandManager commands = new CommandManager();
     private boolean compatible;
@@ -62,6 +65,7 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
     private CitizensTraitFactory traitFactory;
 
     private void despawnNPCs() {
+        npcRegistry.getSpawnQueue().clear();
         Iterator<NPC> itr = npcRegistry.iterator();
         while (itr.hasNext()) {
             NPC npc = itr.next();
@@ -112,6 +116,10 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
         return commands.getCommands(base);
     }
 
+    public NPCDataStore getNPCDataStore() {
+        return saves;
+    }
+
     @Override
     public NPCRegistry getNPCRegistry() {
         return npcRegistry;
@@ -153,13 +161,17 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
         Editor.leaveAll();
         CitizensAPI.shutdown();
 
-        // Don't bother with this part if MC versions are not compatible
-        if (compatible) {
-            saves.storeAll(npcRegistry);
+        // Don't bother with this part if MC versions are not compatible or the
+        // saves could not be loaded
+        if (compatible && saves != null) {
+            saves.storeAll(npcRegistry, true);
             saves.saveToDiskImmediate();
+            saves.shutdown();
             despawnNPCs();
             npcRegistry = null;
         }
+        CitizensNavigator.getPathCache().clear();
+        CitizensNavigator.getPathInvalidationIndex().clear();
     }
 
     @Override
@@ -187,7 +199,18 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
         traitFactory = new CitizensTraitFactory();
         selector = new NPCSelector(this);
 
-        getServer().getPluginManager().registerEvents(new EventListen(), this);
+        getServer().getPluginManager().registerEvents(new EventListen(npcRegistry), this);
+        getServer().getPluginManager().registerEvents(CitizensNavigator.getPathInvalidationIndex(), this);
+        getServer().getScheduler().scheduleSyncRepeatingTask(this, npcRegistry.getSpawnQueue(), 1, 1);
+        getServer().getScheduler().scheduleSyncRepeatingTask(this, npcRegistry.getTraitScheduler(), 1, 1);
+        getServer().getScheduler().scheduleSyncRepeatingTask(this, AStarNavigationStrategy.getIncrementalPlanner(),
+                1, 1);
+        getServer().getScheduler().scheduleSyncRepeatingTask(this, SnapshotBlockSource.getSnapshotCache(), 1, 1);
+        if (npcRegistry.getActivationTracker().isEnabled()) {
+            int interval = Math.max(1, Setting.ACTIVATION_UPDATE_INTERVAL.asInt());
+            getServer().getScheduler().scheduleSyncRepeatingTask(this, npcRegistry.getActivationTracker(), interval,
+                    interval);
+        }
 
         if (Setting.NPC_COST.asDouble() > 0)
             setupEconomy();
@@ -200,7 +223,13 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
         if (getServer().getScheduler().scheduleSyncDelayedTask(this, new Runnable() {
             @Override
             public void run() {
-                saves.loadInto(npcRegistry);
+                if (!saves.loadInto(npcRegistry)) {
+                    Messaging.severeTr(Messages.FAILED_LOAD_SAVES);
+                    saves.shutdown();
+                    saves = null;
+                    getServer().getPluginManager().disablePlugin(Citizens.this);
+                    return;
+                }
                 startMetrics();
                 scheduleSaveTask(Setting.SAVE_TASK_DELAY.asInt());
                 Bukkit.getPluginManager().callEvent(new CitizensEnableEvent());
@@ -251,7 +280,10 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
         Editor.leaveAll();
         config.reload();
         despawnNPCs();
-        saves.loadInto(npcRegistry);
+        if (!saves.loadInto(npcRegistry)) {
+            Messaging.severeTr(Messages.FAILED_LOAD_SAVES);
+            throw new NPCLoadException(Messaging.tr(Messages.FAILED_LOAD_SAVES));
+        }
 
         getServer().getPluginManager().callEvent(new CitizensReloadEvent());
     }
@@ -289,11 +321,51 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
                 public int getValue() {
                     if (npcRegistry == null)
                         return 0;
-                    return Iterables.size(npcRegistry);
+                    return npcRegistry.size();
                 }
             });
 
             traitFactory.addPlotters(metrics.createGraph("traits"));
+            final IncrementalPathPlanner planner = AStarNavigationStrategy.getIncrementalPlanner();
+            Metrics.Graph pathfinding = metrics.createGraph("Incremental pathfinding");
+            pathfinding.addPlotter(new Metrics.Plotter("Expansions per tick") {
+                @Override
+                public int getValue() {
+                    return planner.getAverageExpansionsPerTick();
+                }
+            });
+            pathfinding.addPlotter(new Metrics.Plotter("Queue wait (ms)") {
+                @Override
+                public int getValue() {
+                    return planner.getAverageQueueWait();
+                }
+
+                @Override
+                public void reset() {
+                    // called once both plotters have been sent
+                    planner.resetStatistics();
+                }
+            });
+            metrics.createGraph("Path cache").addPlotter(new Metrics.Plotter("Hit rate (%)") {
+                @Override
+                public int getValue() {
+                    return CitizensNavigator.getPathCache().getHitRate();
+                }
+
+                @Override
+                public void reset() {
+                    CitizensNavigator.getPathCache().resetStatistics();
+                }
+            });
+            Metrics.Graph tiers = metrics.createGraph("Activation tiers");
+            for (final ActivationTier tier : ActivationTier.values()) {
+                tiers.addPlotter(new Metrics.Plotter(StringHelper.capitalize(tier.name().toLowerCase())) {
+                    @Override
+                    public int getValue() {
+                        return npcRegistry == null ? 0 : npcRegistry.getActivationTracker().getCount(tier);
+                    }
+                });
+            }
             metrics.start();
         } catch (IOException e) {
             Messaging.logTr(Messages.METRICS_ERROR_NOTIFICATION, e.getMessage());
@@ -303,12 +375,14 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
     public void storeNPCs() {
         if (saves == null)
             return;
-        for (NPC npc : npcRegistry)
-            saves.store(npc);
+        saves.storeAll(npcRegistry);
     }
 
     public void storeNPCs(CommandContext args) {
-        storeNPCs();
+        if (saves == null)
+            return;
+        // an explicit save writes everything, in case a change hashed the same
+        saves.storeAll(npcRegistry, true);
         boolean async = args.hasFlag('a');
         if (async)
             saves.saveToDisk();
@@ -1,9 +1,9 @@
 package net.citizensnpcs;
 
 import java.util.List;
+import java.util.Set;
 
 import net.citizensnpcs.Settings.Setting;
-import net.citizensnpcs.api.CitizensAPI;
 import net.citizensnpcs.api.event.DespawnReason;
 import net.citizensnpcs.api.event.EntityTargetNPCEvent;
 import net.citizensnpcs.api.event.NPCCombustByBlockEvent;
@@ -17,11 +17,14 @@ import net.citizensnpcs.api.event.NPCLeftClickEvent;
 import net.citizensnpcs.api.event.NPCRightClickEvent;
 import net.citizensnpcs.api.event.PlayerCreateNPCEvent;
 import net.citizensnpcs.api.npc.NPC;
-import net.citizensnpcs.api.npc.NPCRegistry;
 import net.citizensnpcs.api.trait.trait.Owner;
 import net.citizensnpcs.editor.Editor;
+import net.citizensnpcs.npc.CitizensNPCRegistry;
+import net.citizensnpcs.npc.PendingSpawnTable;
 import net.citizensnpcs.npc.ai.NPCHolder;
 import net.citizensnpcs.trait.CurrentLocation;
+import net.citizensnpcs.util.IntList;
+import net.citizensnpcs.util.LongObjectMap;
 import net.citizensnpcs.util.Messages;
 import net.citizensnpcs.util.Messaging;
 import net.citizensnpcs.util.NMS;
@@ -30,6 +33,7 @@ import net.minecraft.server.v1_4_5.EntityPlayer;
 import org.bukkit.Bukkit;
 import org.bukkit.Chunk;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.craftbukkit.v1_4_5.CraftServer;
 import org.bukkit.craftbukkit.v1_4_5.entity.CraftPlayer;
 import org.bukkit.entity.Player;
@@ -54,48 +58,53 @@ import org.bukkit.event.world.ChunkUnloadEvent;
 import org.bukkit.event.world.WorldLoadEvent;
 import org.bukkit.event.world.WorldUnloadEvent;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
 
 public class EventListen implements Listener {
-    private final NPCRegistry npcRegistry = CitizensAPI.getNPCRegistry();
-    private final ListMultimap<ChunkCoord, Integer> toRespawn = ArrayListMultimap.create();
+    private final CitizensNPCRegistry npcRegistry;
+    private final PendingSpawnTable toRespawn = new PendingSpawnTable();
 
-    public EventListen() {
+    public EventListen(CitizensNPCRegistry registry) {
+        npcRegistry = registry;
         instance = this; // TODO: remove singleton
     }
 
+    private int countOwned(String owner, NPC exclude) {
+        Set<NPC> ownedNPCs = npcRegistry.getIndex().getByOwner(owner);
+        return ownedNPCs.contains(exclude) ? ownedNPCs.size() - 1 : ownedNPCs.size();
+    }
+
     /*
      * Chunk events
      */
     @EventHandler(ignoreCancelled = true)
     public void onChunkLoad(ChunkLoadEvent event) {
-        ChunkCoord coord = toCoord(event.getChunk());
-        List<Integer> ids = toRespawn.get(coord);
+        Chunk chunk = event.getChunk();
+        IntList ids = toRespawn.remove(event.getWorld().getName(), chunk.getX(), chunk.getZ());
+        if (ids == null)
+            return;
         for (int i = 0; i < ids.size(); i++) {
             int id = ids.get(i);
             spawn(id);
-            Messaging.debug("Spawned", id, "due to chunk load at [" + coord.x + "," + coord.z + "]");
+            Messaging.debug("Queued", id, "for spawning due to chunk load at [" + chunk.getX() + ","
+                    + chunk.getZ() + "]");
         }
-        toRespawn.removeAll(coord);
     }
 
     @EventHandler(ignoreCancelled = true)
     public void onChunkUnload(ChunkUnloadEvent event) {
-        ChunkCoord coord = toCoord(event.getChunk());
-        Location location = new Location(null, 0, 0, 0);
-        for (NPC npc : npcRegistry) {
+        Chunk chunk = event.getChunk();
+        String worldName = event.getWorld().getName();
+        List<NPC> inChunk = npcRegistry.getChunkIndex().getNPCsInChunk(worldName, chunk.getX(), chunk.getZ());
+        if (inChunk.isEmpty())
+            return;
+        for (NPC npc : Lists.newArrayList(inChunk)) {
             if (!npc.isSpawned())
                 continue;
-            location = npc.getBukkitEntity().getLocation(location);
-            boolean sameChunkCoordinates = coord.z == location.getBlockZ() >> 4
-                    && coord.x == location.getBlockX() >> 4;
-            if (sameChunkCoordinates && event.getWorld().equals(location.getWorld())) {
-                npc.despawn(DespawnReason.CHUNK_UNLOAD);
-                toRespawn.put(coord, npc.getId());
-                Messaging.debug("Despawned", npc.getId(), "due to chunk unload at [" + coord.x + ","
-                        + coord.z + "]");
-            }
+            npc.despawn(DespawnReason.CHUNK_UNLOAD);
+            toRespawn.add(worldName, chunk.getX(), chunk.getZ(), npc.getId());
+            Messaging.debug("Despawned", npc.getId(), "due to chunk unload at [" + chunk.getX() + ","
+                    + chunk.getZ() + "]");
         }
     }
 
@@ -206,11 +215,10 @@ public class EventListen implements Listener {
         }
         if (limit < 0)
             return;
-        int owned = 0;
-        for (NPC npc : npcRegistry) {
-            if (!event.getNPC().equals(npc) && npc.getTrait(Owner.class).isOwnedBy(event.getCreator()))
-                owned++;
-        }
+        int owned = countOwned(event.getCreator().getName(), event.getNPC());
+        // admins own server NPCs as well
+        if (event.getCreator().hasPermission("citizens.admin"))
+            owned += countOwned(Owner.SERVER, event.getNPC());
         int wouldOwn = owned + 1;
         if (wouldOwn >= limit) {
             event.setCancelled(true);
@@ -241,24 +249,22 @@ public class EventListen implements Listener {
      */
     @EventHandler(ignoreCancelled = true)
     public void onWorldLoad(WorldLoadEvent event) {
-        for (ChunkCoord chunk : toRespawn.keySet()) {
-            if (!chunk.worldName.equals(event.getWorld().getName())
-                    || !event.getWorld().isChunkLoaded(chunk.x, chunk.z))
+        World world = event.getWorld();
+        for (long chunk : toRespawn.getChunks(world.getName())) {
+            if (!world.isChunkLoaded(LongObjectMap.getChunkX(chunk), LongObjectMap.getChunkZ(chunk)))
                 continue;
-            List<Integer> ids = toRespawn.get(chunk);
+            IntList ids = toRespawn.remove(world.getName(), chunk);
             for (int i = 0; i < ids.size(); i++) {
                 spawn(ids.get(i));
-                Messaging
-                        .debug("Spawned", ids.get(0), "due to world " + event.getWorld().getName() + " load");
+                Messaging.debug("Queued", ids.get(i), "for spawning due to world", world.getName(), "load");
             }
-            toRespawn.removeAll(chunk);
         }
     }
 
     @EventHandler(ignoreCancelled = true)
     public void onWorldUnload(WorldUnloadEvent event) {
-        for (NPC npc : npcRegistry) {
-            if (!npc.isSpawned() || !npc.getBukkitEntity().getWorld().equals(event.getWorld()))
+        for (NPC npc : npcRegistry.getChunkIndex().getNPCsInWorld(event.getWorld().getName())) {
+            if (!npc.isSpawned())
                 continue;
             storeForRespawn(npc);
             npc.despawn();
@@ -275,66 +281,11 @@ public class EventListen implements Listener {
             Messaging.debug("Couldn't find a spawn location for despawned NPC ID: " + id);
             return;
         }
-        npc.spawn(spawn);
+        npcRegistry.getSpawnQueue().enqueue(npc, spawn);
     }
 
     private void storeForRespawn(NPC npc) {
-        toRespawn.put(toCoord(npc.getBukkitEntity().getLocation()), npc.getId());
-    }
-
-    private ChunkCoord toCoord(Chunk chunk) {
-        return new ChunkCoord(chunk);
-    }
-
-    private ChunkCoord toCoord(Location loc) {
-        return new ChunkCoord(loc.getWorld().getName(), loc.getBlockX() >> 4, loc.getBlockZ() >> 4);
-    }
-
-    private static class ChunkCoord {
-        private final String worldName;
-        private final int x;
-        private final int z;
-
-        private ChunkCoord(Chunk chunk) {
-            this(chunk.getWorld().getName(), chunk.getX(), chunk.getZ());
-        }
-
-        private ChunkCoord(String worldName, int x, int z) {
-            this.x = x;
-            this.z = z;
-            this.worldName = worldName;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) {
-                return true;
-            }
-            if (obj == null || getClass() != obj.getClass()) {
-                return false;
-            }
-            ChunkCoord other = (ChunkCoord) obj;
-            if (worldName == null) {
-                if (other.worldName != null) {
-                    return false;
-                }
-            } else if (!worldName.equals(other.worldName)) {
-                return false;
-            }
-            if (x != other.x || z != other.z) {
-                return false;
-            }
-            return true;
-        }
-
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = prime + ((worldName == null) ? 0 : worldName.hashCode());
-            result = prime * result + x;
-            result = prime * result + z;
-            return result;
-        }
+        addForRespawn(npc.getBukkitEntity().getLocation(), npc.getId());
     }
 
     private static EventListen instance;
@@ -342,6 +293,6 @@ public class EventListen implements Listener {
     public static void addForRespawn(Location loc, int id) {
         if (instance == null)
             return;
-        instance.toRespawn.put(instance.toCoord(loc), id);
+        instance.toRespawn.add(loc.getWorld().getName(), loc.getBlockX() >> 4, loc.getBlockZ() >> 4, id);
     }
 }
\ No newline at end of file
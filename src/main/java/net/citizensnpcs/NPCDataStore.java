@@ -2,76 +2,429 @@ package net.citizensnpcs;
 
 import java.io.File;
 import java.sql.SQLException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import net.citizensnpcs.Settings.Setting;
 import net.citizensnpcs.api.npc.NPC;
-import net.citizensnpcs.api.npc.NPCRegistry;
 import net.citizensnpcs.api.util.DataKey;
 import net.citizensnpcs.api.util.DatabaseStorage;
+import net.citizensnpcs.api.util.MemoryDataKey;
 import net.citizensnpcs.api.util.NBTStorage;
 import net.citizensnpcs.api.util.Storage;
 import net.citizensnpcs.api.util.YamlStorage;
 import net.citizensnpcs.npc.CitizensNPC;
 import net.citizensnpcs.npc.CitizensNPCRegistry;
+import net.citizensnpcs.util.BinaryStorage;
+import net.citizensnpcs.util.IncrementalStorage;
+import net.citizensnpcs.util.JournalStorage;
 import net.citizensnpcs.util.Messages;
 import net.citizensnpcs.util.Messaging;
+import net.citizensnpcs.util.PartialStorage;
+import net.citizensnpcs.util.SQLStorage;
+import net.citizensnpcs.util.ShardedStorage;
+import net.citizensnpcs.util.StorageHelper;
 import net.citizensnpcs.util.Util;
 
 import org.bukkit.entity.EntityType;
 
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 public class NPCDataStore {
+    private int highWaterMark;
+    private volatile long loadTime;
+    private Future<Boolean> loading;
+    private volatile int lastMergedRequests;
+    private int lastSkipped;
+    private volatile long lastWriteLatency;
+    private int lastWritten;
+    private final Object lock = new Object();
+    private List<PendingWrite> queued = Lists.newArrayList();
+    private long requestedAt;
+    private int requests;
     private final Storage root;
+    private final ExecutorService saveExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("Citizens Save Thread").build());
+    private int storeCount;
+    private boolean writeScheduled;
 
     private NPCDataStore(Storage saves) {
         root = saves;
     }
 
-    public void loadInto(CitizensNPCRegistry registry) {
-        int created = 0;
-        for (DataKey key : root.getKey("npc").getIntegerSubKeys()) {
-            int id = Integer.parseInt(key.name());
-            if (!key.keyExists("name")) {
-                Messaging.logTr(Messages.LOAD_NAME_NOT_FOUND, id);
-                continue;
-            }
-            String unparsedEntityType = key.getString("traits.type", "PLAYER");
-            EntityType type = Util.matchEntityType(unparsedEntityType);
-            if (type == null) {
-                Messaging.logTr(Messages.LOAD_UNKNOWN_NPC_TYPE, unparsedEntityType);
+    private void apply(PendingWrite write) {
+        if (root instanceof PartialStorage)
+            ((PartialStorage) root).readNPC(write.id);
+        DataKey npcRoot = root.getKey("npc");
+        String id = Integer.toString(write.id);
+        if (root instanceof IncrementalStorage)
+            ((IncrementalStorage) root).markChanged("npc." + id);
+        if (write.data == null) {
+            npcRoot.removeKey(id);
+            return;
+        }
+        DataKey key = npcRoot.getRelative(id);
+        // every subtree in the snapshot replaces the stored one wholesale
+        for (DataKey sub : write.data.getSubKeys()) {
+            if (sub.name().equals("traits"))
                 continue;
+            key.removeKey(sub.name());
+            StorageHelper.copy(sub, key.getRelative(sub.name()));
+        }
+        for (DataKey trait : write.data.getRelative("traits").getSubKeys()) {
+            DataKey traitKey = key.getRelative("traits." + trait.name());
+            key.removeKey("traits." + trait.name());
+            StorageHelper.copy(trait, traitKey);
+        }
+        if (!write.data.keyExists("traitnames"))
+            return;
+        // drop data belonging to traits that have since been removed
+        Set<String> names = Sets.newHashSet(Splitter.on(',').split(write.data.getString("traitnames")));
+        for (DataKey trait : key.getRelative("traits").getSubKeys()) {
+            if (!names.contains(trait.name()))
+                key.removeKey("traits." + trait.name());
+        }
+    }
+
+    /**
+     * Returns the number of save requests that were merged into the last
+     * write to disk.
+     */
+    public int getLastMergedRequests() {
+        return lastMergedRequests;
+    }
+
+    /**
+     * Returns the number of NPCs skipped as unchanged by the last call to
+     * {@link #storeAll(CitizensNPCRegistry)}.
+     */
+    public int getLastSkipped() {
+        return lastSkipped;
+    }
+
+    /**
+     * Returns the time in milliseconds between the oldest request merged into
+     * the last write and the write finishing.
+     */
+    public long getLastWriteLatency() {
+        return lastWriteLatency;
+    }
+
+    /**
+     * Returns the number of NPCs written by the last call to
+     * {@link #storeAll(CitizensNPCRegistry)}.
+     */
+    public int getLastWritten() {
+        return lastWritten;
+    }
+
+    /**
+     * Returns the number of stored or removed NPCs that are waiting to be
+     * written to disk.
+     */
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return queued.size();
+        }
+    }
+
+    /**
+     * Creates and registers every stored NPC, returning false if the storage
+     * could not be read. Each NPC's data is gathered into its own key on a pool
+     * of worker threads; only creating and loading the NPCs happens on the
+     * calling thread.
+     *
+     * If {@link Setting#LAZY_LOAD_NPCS} is enabled, only the data needed to
+     * place each NPC is loaded and the rest is read from the storage when the
+     * NPC is first spawned or used.
+     */
+    public boolean loadInto(CitizensNPCRegistry registry) {
+        long parseTime = 0;
+        if (loading != null) {
+            try {
+                if (!loading.get())
+                    return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                return false;
             }
-            NPC npc = registry.createNPC(type, id, key.getString("name"));
-            ((CitizensNPC) npc).load(key);
+            parseTime = loadTime;
+            loading = null;
+        }
+        waitForWrites();
+        boolean lazy = Setting.LAZY_LOAD_NPCS.asBoolean();
+        Runtime runtime = Runtime.getRuntime();
+        long start = System.nanoTime(), heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        List<DataKey> keys = Lists.newArrayList(root.getKey("npc").getIntegerSubKeys());
+        BitSet saved = new BitSet();
+        for (DataKey key : keys)
+            saved.set(Integer.parseInt(key.name()));
+        // reserve the IDs of every saved NPC, even those that fail to load
+        registry.getIdAllocator().reset(root.getKey("").getInt(HIGH_WATER_MARK_KEY, 0), saved);
+        highWaterMark = registry.getIdAllocator().getHighWaterMark();
+
+        List<LoadedNPC> loaded = prepare(keys, !lazy);
+        if (loaded == null)
+            return false;
+        long prepared = System.nanoTime();
 
-            created++;
+        for (LoadedNPC data : loaded) {
+            CitizensNPC npc = (CitizensNPC) registry.createNPC(data.type, data.id, data.name);
+            if (lazy) {
+                npc.loadLazily(data.key, root);
+            } else
+                npc.load(data.key);
+            // everything that was just loaded is already in storage
+            npc.clearDirty();
         }
-        Messaging.logTr(Messages.NUM_LOADED_NOTIFICATION, created, "?");
+        long finished = System.nanoTime();
+        Messaging.logTr(Messages.NUM_LOADED_NOTIFICATION, loaded.size(), parseTime + TimeUnit.NANOSECONDS
+                .toMillis(finished - start), parseTime, TimeUnit.NANOSECONDS.toMillis(prepared - start),
+                TimeUnit.NANOSECONDS.toMillis(finished - prepared));
+        long heapGrowth = runtime.totalMemory() - runtime.freeMemory() - heapBefore;
+        Messaging.debug("Loaded", loaded.size(), lazy ? "NPCs lazily," : "NPCs,", "heap grew by about",
+                heapGrowth / 1024 + "KB");
+        return true;
+    }
+
+    /**
+     * Reads the name and type of each stored NPC on a pool of worker threads,
+     * skipping any that are invalid. If <code>detach</code> is true, each
+     * NPC's data is also copied into its own in-memory key so that it can be
+     * loaded without going back to the storage. The results are in the same
+     * order as <code>keys</code>. Returns null if any worker fails, rather
+     * than loading only some of the NPCs.
+     */
+    private List<LoadedNPC> prepare(List<DataKey> keys, final boolean detach) {
+        if (keys.isEmpty())
+            return Collections.emptyList();
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), (keys.size() + MIN_NPCS_PER_WORKER - 1)
+                / MIN_NPCS_PER_WORKER);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setNameFormat(
+                "Citizens Load Thread %d").build());
+        List<LoadedNPC> loaded = Lists.newArrayListWithCapacity(keys.size());
+        try {
+            List<Future<List<LoadedNPC>>> results = Lists.newArrayListWithCapacity(threads);
+            int sliceSize = (keys.size() + threads - 1) / threads;
+            for (int i = 0; i < keys.size(); i += sliceSize) {
+                final List<DataKey> slice = keys.subList(i, Math.min(keys.size(), i + sliceSize));
+                results.add(pool.submit(new Callable<List<LoadedNPC>>() {
+                    @Override
+                    public List<LoadedNPC> call() {
+                        List<LoadedNPC> result = Lists.newArrayListWithCapacity(slice.size());
+                        for (DataKey key : slice) {
+                            LoadedNPC npc = LoadedNPC.read(key, detach);
+                            if (npc != null)
+                                result.add(npc);
+                        }
+                        return result;
+                    }
+                }));
+            }
+            for (Future<List<LoadedNPC>> result : results)
+                loaded.addAll(result.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            return null;
+        } finally {
+            pool.shutdown();
+        }
+        return loaded;
+    }
+
+    /**
+     * Reads the storage on the save thread, so that it can happen while other
+     * plugins are enabling. {@link #loadInto(CitizensNPCRegistry)} waits for it
+     * to finish.
+     */
+    private void startLoading() {
+        loading = saveExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                long start = System.nanoTime();
+                boolean loaded = root.load();
+                loadTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                return loaded;
+            }
+        });
     }
 
     public void remove(NPC npc) {
-        root.getKey("npc").removeKey(Integer.toString(npc.getId()));
+        synchronized (lock) {
+            queued.add(new PendingWrite(npc.getId(), null));
+        }
     }
 
+    /**
+     * Schedules the stored NPC data to be written to disk on the save thread.
+     * Requests made while a write is already waiting are merged into it.
+     */
     public void saveToDisk() {
-        new Thread() {
+        synchronized (lock) {
+            if (requests++ == 0)
+                requestedAt = System.nanoTime();
+            if (writeScheduled)
+                return;
+            writeScheduled = true;
+        }
+        saveExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                root.save();
+                write();
             }
-        }.start();
+        });
     }
 
     public void saveToDiskImmediate() {
-        root.save();
+        saveToDisk();
+        waitForWrites();
+    }
+
+    /**
+     * Writes any outstanding data and stops the save thread.
+     */
+    public void shutdown() {
+        saveExecutor.shutdown();
+        try {
+            saveExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     public void store(NPC npc) {
-        ((CitizensNPC) npc).save(root.getKey("npc." + npc.getId()));
+        store((CitizensNPC) npc, false);
+    }
+
+    /**
+     * Snapshots the NPC for the next write, returning false if nothing had
+     * changed and so nothing was queued.
+     */
+    private boolean store(CitizensNPC npc, boolean onlyDirty) {
+        MemoryDataKey snapshot = new MemoryDataKey();
+        boolean changed = npc.save(snapshot, onlyDirty);
+        npc.clearDirty();
+        if (!changed)
+            return false;
+        synchronized (lock) {
+            queued.add(new PendingWrite(npc.getId(), snapshot));
+        }
+        return true;
     }
 
-    public void storeAll(NPCRegistry registry) {
-        for (NPC npc : registry)
-            store(npc);
+    /**
+     * Stores every NPC that has changed since it was last stored. Every
+     * {@link Setting#FULL_SAVE_INTERVAL} calls all NPCs are written in full,
+     * as a change whose saved output hashes the same as the stored output
+     * would otherwise be missed.
+     *
+     * The NPCs are snapshotted on the calling thread; the snapshots are applied
+     * to the storage by the next write to disk.
+     */
+    public void storeAll(CitizensNPCRegistry registry) {
+        int interval = Setting.FULL_SAVE_INTERVAL.asInt();
+        storeAll(registry, interval > 0 && ++storeCount % interval == 0);
+    }
+
+    /**
+     * Stores every NPC, or with <code>full</code> false only those that have
+     * changed since they were last stored. Changes that were not marked dirty,
+     * such as those made through the API, are found by comparing each NPC's
+     * saved output with what was last stored.
+     */
+    public void storeAll(CitizensNPCRegistry registry, boolean full) {
+        int written = 0, skipped = 0;
+        for (NPC npc : registry) {
+            if (store((CitizensNPC) npc, !full)) {
+                written++;
+            } else
+                skipped++;
+        }
+        synchronized (lock) {
+            highWaterMark = registry.getIdAllocator().getHighWaterMark();
+        }
+        lastWritten = written;
+        lastSkipped = skipped;
+        Messaging.debug("Stored", written, "NPCs, skipped", skipped, full ? "(full save)" : "");
+    }
+
+    /**
+     * Blocks until every write scheduled so far has finished.
+     */
+    public void waitForWrites() {
+        try {
+            saveExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        } catch (RejectedExecutionException e) {
+            // already shut down
+        }
+    }
+
+    private void write() {
+        List<PendingWrite> writes;
+        int merged, hwm;
+        long requested;
+        synchronized (lock) {
+            writes = queued;
+            queued = Lists.newArrayList();
+            merged = requests;
+            requests = 0;
+            requested = requestedAt;
+            hwm = highWaterMark;
+            writeScheduled = false;
+        }
+        try {
+            // lazily loaded NPCs read their data from the storage under this lock
+            synchronized (root) {
+                for (PendingWrite write : writes)
+                    apply(write);
+                DataKey base = root.getKey("");
+                if (base.getInt(HIGH_WATER_MARK_KEY, -1) != hwm) {
+                    base.setInt(HIGH_WATER_MARK_KEY, hwm);
+                    if (root instanceof IncrementalStorage)
+                        ((IncrementalStorage) root).markChanged(HIGH_WATER_MARK_KEY);
+                }
+            }
+            root.save();
+        } catch (Exception ex) {
+            Messaging.severeTr(Messages.FAILED_SAVE, ex.getMessage());
+            ex.printStackTrace();
+            // the NPCs are no longer dirty, so the snapshots must be retried by
+            // the next write, ahead of any newer ones
+            synchronized (lock) {
+                queued.addAll(0, writes);
+            }
+            return;
+        }
+        lastMergedRequests = merged;
+        lastWriteLatency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requested);
+        Messaging.debug("Wrote", writes.size(), "NPC changes to disk in", lastWriteLatency + "ms, merging",
+                merged, "requests");
     }
 
     public static NPCDataStore create(File folder) {
@@ -86,14 +439,77 @@ public class NPCDataStore {
                 e.printStackTrace();
                 Messaging.logTr(Messages.DATABASE_CONNECTION_FAILED);
             }
+        } else if (type.equalsIgnoreCase("binary")) {
+            // lazily loaded NPCs read the rest of their traits when first used
+            saves = new BinaryStorage(new File(folder, Setting.BINARY_STORAGE_FILE.asString()), new File(folder,
+                    Setting.STORAGE_FILE.asString()), Setting.LAZY_LOAD_NPCS.asBoolean() ? CitizensNPC.STUB_TRAIT_NAMES
+                    : null);
+        } else if (type.equalsIgnoreCase("journal")) {
+            saves = new JournalStorage(new File(folder, Setting.STORAGE_FILE.asString()), "Citizens NPC Storage",
+                    Setting.JOURNAL_COMPACTION_SIZE.asInt() * 1024L);
+        } else if (type.equalsIgnoreCase("sharded")) {
+            saves = new ShardedStorage(new File(folder, Setting.SHARDED_STORAGE_FOLDER.asString()), new File(folder,
+                    Setting.STORAGE_FILE.asString()), "Citizens NPC Storage");
+        } else if (type.equalsIgnoreCase("sql")) {
+            saves = new SQLStorage(Setting.DATABASE_DRIVER.asString(), Setting.DATABASE_URL.asString(),
+                    Setting.DATABASE_USERNAME.asString(), Setting.DATABASE_PASSWORD.asString(), new File(folder,
+                            Setting.STORAGE_FILE.asString()));
         } else if (type.equalsIgnoreCase("nbt")) {
             saves = new NBTStorage(folder + File.separator + Setting.STORAGE_FILE.asString(),
                     "Citizens NPC Storage");
         }
         if (saves == null)
             saves = new YamlStorage(new File(folder, Setting.STORAGE_FILE.asString()), "Citizens NPC Storage");
-        if (!saves.load())
-            return null;
-        return new NPCDataStore(saves);
+        NPCDataStore store = new NPCDataStore(saves);
+        store.startLoading();
+        return store;
     }
+
+    private static class LoadedNPC {
+        private final int id;
+        private final DataKey key;
+        private final String name;
+        private final EntityType type;
+
+        private LoadedNPC(int id, String name, EntityType type, DataKey key) {
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.key = key;
+        }
+
+        private static LoadedNPC read(DataKey key, boolean detach) {
+            int id = Integer.parseInt(key.name());
+            if (!key.keyExists("name")) {
+                Messaging.logTr(Messages.LOAD_NAME_NOT_FOUND, id);
+                return null;
+            }
+            String unparsedEntityType = key.getString("traits.type", "PLAYER");
+            EntityType type = Util.matchEntityType(unparsedEntityType);
+            if (type == null) {
+                Messaging.logTr(Messages.LOAD_UNKNOWN_NPC_TYPE, unparsedEntityType);
+                return null;
+            }
+            if (detach) {
+                MemoryDataKey copy = new MemoryDataKey();
+                StorageHelper.copy(key, copy);
+                key = copy;
+            }
+            return new LoadedNPC(id, key.getString("name"), type, key);
+        }
+    }
+
+    private static class PendingWrite {
+        private final MemoryDataKey data;
+        private final int id;
+
+        private PendingWrite(int id, MemoryDataKey data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    private static final String HIGH_WATER_MARK_KEY = "next-npc-id";
+    private static final int MIN_NPCS_PER_WORKER = 500;
+    private static final int SHUTDOWN_TIMEOUT_SECONDS = 30;
 }
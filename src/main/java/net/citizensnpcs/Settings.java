@@ -43,6 +43,13 @@ public class Settings {
     }
 
     public enum Setting {
+        ACTIVATION_FROZEN_STEP_INTERVAL("npc.activation.frozen-step-interval", 20),
+        ACTIVATION_FULL_RATE_RANGE("npc.activation.full-rate-range", 48D),
+        ACTIVATION_REDUCED_INTERVAL("npc.activation.reduced-tick-interval", 4),
+        ACTIVATION_REDUCED_RATE_RANGE("npc.activation.reduced-rate-range", 96D),
+        ACTIVATION_TIERS_ENABLED("npc.activation.enabled", false),
+        ACTIVATION_UPDATE_INTERVAL("npc.activation.update-interval", 20),
+        BINARY_STORAGE_FILE("storage.binary.file", "saves.dat"),
         CHAT_PREFIX("npc.chat.prefix", "[<npc>]: "),
         DATABASE_DRIVER("storage.database.driver", ""),
         DATABASE_PASSWORD("storage.database.password", ""),
@@ -67,25 +74,45 @@ public class Settings {
                 value = list;
             }
         },
+        FULL_SAVE_INTERVAL("storage.save-task.full-save-interval", 10),
         HIGHLIGHT_COLOUR("general.color-scheme.message-highlight", "<e>"),
+        JOURNAL_COMPACTION_SIZE("storage.journal.compaction-size-kb", 8192),
         KEEP_CHUNKS_LOADED("npc.chunks.always-keep-loaded", false),
+        LAZY_LOAD_NPCS("storage.lazy-load", false),
+        LINE_OF_SIGHT_CACHE_TICKS("npc.pathfinding.follow.line-of-sight-ticks", 5),
         LOCALE("general.translation.locale", ""),
+        LOCATION_TICK_INTERVAL("npc.tick-intervals.location", 5),
+        LOOK_CLOSE_TICK_INTERVAL("npc.tick-intervals.look-close", 2),
         MAX_NPC_LIMIT_CHECKS("npc.limits.max-permission-checks", 100),
+        MAX_SPAWN_TIME_PER_TICK("npc.spawning.max-milliseconds-per-tick", 5),
+        MAX_SPAWNS_PER_TICK("npc.spawning.max-per-tick", 50),
         MAX_SPEED("npc.limits.max-speed", 100),
         MESSAGE_COLOUR("general.color-scheme.message", "<a>"),
         NPC_COST("economy.npc.cost", 100D),
+        PATHFINDING_ITERATIONS_PER_NPC("npc.pathfinding.incremental.max-iterations-per-npc", 200),
+        PATHFINDING_ITERATIONS_PER_TICK("npc.pathfinding.incremental.max-iterations-per-tick", 2000),
+        PATHFINDING_SEARCH_MODE("npc.pathfinding.search-mode", "async"),
+        PATHFINDING_THREADS("npc.pathfinding.async-threads", 2),
+        PATH_CACHE_EXPIRY("npc.pathfinding.cache.expiry-seconds", 60),
+        PATH_CACHE_MAX_POINTS("npc.pathfinding.cache.max-points", 20000),
         QUICK_SELECT("npc.selection.quick-select", false),
         REMOVE_PLAYERS_FROM_PLAYER_LIST("npc.player.remove-from-list", true),
+        SAVE_LOCATION_THRESHOLD("storage.save-task.location-threshold", 1D),
         SAVE_TASK_DELAY("storage.save-task.delay", 20 * 60 * 60),
         SELECTION_ITEM("npc.selection.item", "280"),
         SELECTION_MESSAGE("npc.selection.message", "<b>You selected <a><npc><b>!"),
         SERVER_OWNS_NPCS("npc.server-ownership", false),
+        SHARDED_STORAGE_FOLDER("storage.sharded.folder", "npcs"),
         STORAGE_FILE("storage.file", "saves.yml"),
         STORAGE_TYPE("storage.type", "yaml"),
         SUBPLUGIN_FOLDER("subplugins.folder", "plugins"),
         TALK_CLOSE_MAXIMUM_COOLDOWN("npc.text.max-talk-cooldown", 60),
         TALK_CLOSE_MINIMUM_COOLDOWN("npc.text.min-talk-cooldown", 30),
+        TALK_CLOSE_TICK_INTERVAL("npc.tick-intervals.talk-close", 10),
         TALK_ITEM("npc.text.talk-item", "340"),
+        TARGET_REPATH_DISTANCE("npc.pathfinding.follow.repath-distance", 1D),
+        TARGET_REPATH_MAX_INTERVAL("npc.pathfinding.follow.repath-max-interval", 20),
+        TEMPLATES_APPLIED_PER_TICK("npc.templates.max-applied-per-tick", 100),
         USE_NEW_PATHFINDER("npc.pathfinding.use-new-finder", false);
 
         protected String path;
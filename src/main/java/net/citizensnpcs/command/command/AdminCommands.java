@@ -1,6 +1,7 @@
 package net.citizensnpcs.command.command;
 
 import net.citizensnpcs.Citizens;
+import net.citizensnpcs.NPCDataStore;
 import net.citizensnpcs.api.exception.NPCLoadException;
 import net.citizensnpcs.api.npc.NPC;
 import net.citizensnpcs.command.Command;
@@ -64,6 +65,10 @@ public class AdminCommands {
     public void save(CommandContext args, CommandSender sender, NPC npc) {
         Messaging.sendTr(sender, Messages.CITIZENS_SAVING);
         plugin.storeNPCs(args);
+        NPCDataStore saves = plugin.getNPCDataStore();
+        Messaging.sendTr(sender, Messages.SAVE_STATISTICS, saves.getLastWritten(), saves.getLastSkipped());
+        Messaging.sendTr(sender, Messages.SAVE_QUEUE_STATISTICS, saves.getLastWriteLatency(),
+                saves.getLastMergedRequests(), saves.getQueueDepth());
         Messaging.sendTr(sender, Messages.CITIZENS_SAVED);
     }
 }
\ No newline at end of file
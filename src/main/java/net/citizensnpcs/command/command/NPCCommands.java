@@ -1,6 +1,5 @@
 package net.citizensnpcs.command.command;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -24,7 +23,10 @@ import net.citizensnpcs.command.exception.CommandException;
 import net.citizensnpcs.command.exception.NoPermissionsException;
 import net.citizensnpcs.command.exception.ServerCommandException;
 import net.citizensnpcs.npc.CitizensNPC;
+import net.citizensnpcs.npc.CitizensNPCRegistry;
 import net.citizensnpcs.npc.EntityControllers;
+import net.citizensnpcs.npc.NPCIndex;
+import net.citizensnpcs.npc.NPCQuery;
 import net.citizensnpcs.npc.NPCSelector;
 import net.citizensnpcs.npc.Template;
 import net.citizensnpcs.trait.Age;
@@ -64,17 +66,20 @@ import org.bukkit.entity.Skeleton.SkeletonType;
 import org.bukkit.entity.Villager.Profession;
 import org.bukkit.event.player.PlayerTeleportEvent.TeleportCause;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
 @Requirements(selected = true, ownership = true)
 public class NPCCommands {
+    private final NPCIndex index;
     private final NPCRegistry npcRegistry;
     private final NPCSelector selector;
 
     public NPCCommands(Citizens plugin) {
         npcRegistry = CitizensAPI.getNPCRegistry();
+        index = ((CitizensNPCRegistry) npcRegistry).getIndex();
         selector = plugin.getNPCSelector();
     }
 
@@ -242,11 +247,12 @@ public class NPCCommands {
         from.save(key);
         copy.load(key);
 
-        if (copy.isSpawned() && args.getSenderLocation() != null) {
-            Location location = args.getSenderLocation();
-            copy.getBukkitEntity().teleport(location);
-            copy.getTrait(CurrentLocation.class).setLocation(location);
-        }
+        // spawn the copy now instead of waiting on the spawn queue
+        Location location = args.getSenderLocation();
+        if (location == null)
+            location = copy.getTrait(CurrentLocation.class).getLocation();
+        if (copy.getTrait(Spawned.class).shouldSpawn() && location != null)
+            copy.spawn(location);
 
         for (Trait trait : copy.getTraits())
             trait.onCopy();
@@ -308,6 +314,8 @@ public class NPCCommands {
         if (!Setting.SERVER_OWNS_NPCS.asBoolean())
             npc.getTrait(Owner.class).setOwner(sender.getName());
         npc.getTrait(MobType.class).setType(type);
+        Util.markDirty(npc, npc.getTrait(Owner.class));
+        Util.markDirty(npc, npc.getTrait(MobType.class));
 
         Location spawnLoc = null;
         if (sender instanceof Player) {
@@ -421,7 +429,9 @@ public class NPCCommands {
             if (npc == null)
                 throw new CommandException(Messages.NO_NPC_WITH_ID_FOUND, id);
         }
-        npc.getTrait(Spawned.class).setSpawned(false);
+        Spawned spawned = npc.getTrait(Spawned.class);
+        spawned.setSpawned(false);
+        Util.markDirty(npc, spawned);
         npc.despawn();
         Messaging.sendTr(sender, Messages.NPC_DESPAWNED, npc.getName());
     }
@@ -476,7 +486,7 @@ public class NPCCommands {
 
     @Command(
             aliases = { "npc" },
-            usage = "list (page) ((-a) --owner (owner) --type (type) --char (char))",
+            usage = "list (page) ((-a) --owner (owner) --type (type) --world (world) --radius (radius) --trait (trait) --name (prefix) --sort (id|name|distance))",
             desc = "List NPCs",
             flags = "a",
             modifiers = { "list" },
@@ -485,37 +495,66 @@ public class NPCCommands {
             permission = "npc.list")
     @Requirements
     public void list(CommandContext args, CommandSender sender, NPC npc) throws CommandException {
-        List<NPC> npcs = new ArrayList<NPC>();
-
-        if (args.hasFlag('a')) {
-            for (NPC add : npcRegistry)
-                npcs.add(add);
-        } else if (args.getValueFlags().size() == 0 && sender instanceof Player) {
-            for (NPC add : npcRegistry) {
-                if (!npcs.contains(add) && add.getTrait(Owner.class).isOwnedBy(sender))
-                    npcs.add(add);
-            }
-        } else {
-            if (args.hasValueFlag("owner")) {
-                String name = args.getFlag("owner");
-                for (NPC add : npcRegistry) {
-                    if (!npcs.contains(add) && add.getTrait(Owner.class).isOwnedBy(name))
-                        npcs.add(add);
-                }
-            }
-
-            if (args.hasValueFlag("type")) {
-                EntityType type = Util.matchEntityType(args.getFlag("type"));
-
-                if (type == null)
-                    throw new CommandException(Messages.COMMAND_INVALID_MOBTYPE, type);
+        NPCQuery query = new NPCQuery((CitizensNPCRegistry) npcRegistry);
+        if (!args.hasFlag('a') && args.getValueFlags().size() == 0 && sender instanceof Player) {
+            if (sender.hasPermission("citizens.admin"))
+                query.ownedBy(sender.getName(), Owner.SERVER);
+            else
+                query.ownedBy(sender.getName());
+        }
 
-                for (NPC add : npcRegistry) {
-                    if (!npcs.contains(add) && add.getTrait(MobType.class).getType() == type)
-                        npcs.add(add);
-                }
+        if (args.hasValueFlag("owner"))
+            query.ownedBy(args.getFlag("owner"));
+        if (args.hasValueFlag("type")) {
+            EntityType type = Util.matchEntityType(args.getFlag("type"));
+            if (type == null)
+                throw new CommandException(Messages.COMMAND_INVALID_MOBTYPE, args.getFlag("type"));
+            query.ofType(type);
+        }
+        if (args.hasValueFlag("world"))
+            query.inWorld(args.getFlag("world"));
+        if (args.hasValueFlag("trait")) {
+            Class<? extends Trait> clazz = CitizensAPI.getTraitFactory().getTraitClass(args.getFlag("trait"));
+            if (clazz == null)
+                throw new CommandException(Messages.TRAIT_NOT_FOUND);
+            query.withTrait(clazz);
+        }
+        if (args.hasValueFlag("name"))
+            query.nameStartsWith(args.getFlag("name"));
+
+        NPCQuery.Sort sort = NPCQuery.Sort.ID;
+        if (args.hasValueFlag("sort")) {
+            sort = Util.matchEnum(NPCQuery.Sort.values(), args.getFlag("sort"));
+            if (sort == null)
+                throw new CommandException(Messages.INVALID_LIST_SORT, args.getFlag("sort"), Joiner.on(", ")
+                        .join(NPCQuery.Sort.values()).toLowerCase());
+        }
+        if (args.hasValueFlag("radius") || sort == NPCQuery.Sort.DISTANCE) {
+            if (args.getSenderLocation() == null)
+                throw new ServerCommandException();
+            try {
+                // without a radius, sorting by distance lists the sender's world
+                query.near(args.getSenderLocation(), args.getFlagDouble("radius", Double.POSITIVE_INFINITY));
+            } catch (NumberFormatException e) {
+                throw new CommandException(Messages.COMMAND_INVALID_NUMBER);
             }
         }
+        query.sortBy(sort);
+
+        // only the NPCs on the requested page are fetched
+        int perPage = (Paginator.LINES_PER_PAGE - 1) * 2;
+        int page = args.getInteger(1, 1);
+        if (page < 1 || page > Integer.MAX_VALUE / perPage)
+            throw new CommandException(Messages.COMMAND_PAGE_MISSING, page);
+        NPCQuery.Result result = query.offset((page - 1) * perPage).limit(perPage).run();
+        List<NPC> npcs = result.getNPCs();
+        if (npcs.isEmpty() && page > 1)
+            throw new CommandException(Messages.COMMAND_PAGE_MISSING, page);
+        // counting every match would cost a full scan, so an unknown total is
+        // shown as the next page followed by a plus
+        String pages = (page + 1) + "+";
+        if (result.isTotalKnown())
+            pages = Integer.toString(Math.max(1, (result.getTotal() + perPage - 1) / perPage));
 
         Paginator paginator = new Paginator().header("NPCs");
         paginator.addLine("<e>Key: <a>ID  <b>Name");
@@ -525,10 +564,7 @@ public class NPCCommands {
                 line += "      " + "<a>" + npcs.get(i + 1).getId() + "<b>  " + npcs.get(i + 1).getName();
             paginator.addLine(line);
         }
-
-        int page = args.getInteger(1, 1);
-        if (!paginator.sendPage(sender, page))
-            throw new CommandException(Messages.COMMAND_PAGE_MISSING);
+        paginator.sendPage(sender, page, pages);
     }
 
     @Command(
@@ -651,6 +687,7 @@ public class NPCCommands {
         if (ownerTrait.isOwnedBy(name))
             throw new CommandException(Messages.ALREADY_OWNER, name, npc.getName());
         ownerTrait.setOwner(name);
+        Util.markDirty(npc, ownerTrait);
         boolean serverOwner = name.equalsIgnoreCase(Owner.SERVER);
         Messaging.sendTr(sender, serverOwner ? Messages.OWNER_SET_SERVER : Messages.OWNER_SET, npc.getName(),
                 name);
@@ -688,6 +725,7 @@ public class NPCCommands {
         else if (args.hasFlag('r'))
             remove = true;
         npc.data().setPersistent("removefromplayerlist", remove);
+        Util.markDirty(npc);
         if (npc.isSpawned())
             NMS.addOrRemoveFromPlayerList(npc.getBukkitEntity(), remove);
         Messaging.sendTr(sender, remove ? Messages.REMOVED_FROM_PLAYERLIST : Messages.ADDED_TO_PLAYERLIST,
@@ -868,11 +906,7 @@ public class NPCCommands {
                 toSelect = npcRegistry.getById(id);
             } catch (NumberFormatException ex) {
                 String name = args.getString(1);
-                List<NPC> possible = Lists.newArrayList();
-                for (NPC test : npcRegistry) {
-                    if (test.getName().equalsIgnoreCase(name))
-                        possible.add(test);
-                }
+                List<NPC> possible = Lists.newArrayList(index.getByName(name));
                 if (possible.size() == 1)
                     toSelect = possible.get(0);
                 else if (possible.size() > 1) {
@@ -1031,6 +1065,7 @@ public class NPCCommands {
             npc.data().set(NPC.DEFAULT_PROTECTED_METADATA, vulnerable);
         } else {
             npc.data().setPersistent(NPC.DEFAULT_PROTECTED_METADATA, vulnerable);
+            Util.markDirty(npc);
         }
         String key = vulnerable ? Messages.VULNERABLE_STOPPED : Messages.VULNERABLE_SET;
         Messaging.sendTr(sender, key, npc.getName());
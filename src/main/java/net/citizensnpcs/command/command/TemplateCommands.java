@@ -1,10 +1,10 @@
 package net.citizensnpcs.command.command;
 
+import java.util.Iterator;
 import java.util.List;
 
-import javax.annotation.Nullable;
-
 import net.citizensnpcs.Citizens;
+import net.citizensnpcs.Settings.Setting;
 import net.citizensnpcs.api.CitizensAPI;
 import net.citizensnpcs.api.npc.NPC;
 import net.citizensnpcs.command.Command;
@@ -16,16 +16,18 @@ import net.citizensnpcs.npc.Template.TemplateBuilder;
 import net.citizensnpcs.util.Messages;
 import net.citizensnpcs.util.Messaging;
 
+import org.bukkit.Bukkit;
 import org.bukkit.command.CommandSender;
 
-import com.google.common.base.Function;
 import com.google.common.base.Splitter;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
 @Requirements(selected = true, ownership = true)
 public class TemplateCommands {
+    private final Citizens plugin;
+
     public TemplateCommands(Citizens plugin) {
+        this.plugin = plugin;
     }
 
     @Command(
@@ -40,33 +42,61 @@ public class TemplateCommands {
         Template template = Template.byName(args.getString(1));
         if (template == null)
             throw new CommandException(Messages.TEMPLATE_MISSING);
-        int appliedCount = 0;
         if (args.argsLength() == 2) {
             if (npc == null)
                 throw new CommandException(Messaging.tr(Messages.COMMAND_MUST_HAVE_SELECTED));
             template.apply(npc);
-            appliedCount++;
-        } else {
-            String joined = args.getJoinedStrings(2, ',');
-            List<Integer> ids = Lists.newArrayList();
-            for (String id : Splitter.on(',').trimResults().split(joined)) {
-                int parsed = Integer.parseInt(id);
-                ids.add(parsed);
+            Messaging.sendTr(sender, Messages.TEMPLATE_APPLIED, 1);
+            return;
+        }
+        String joined = args.getJoinedStrings(2, ',');
+        List<Integer> ids = Lists.newArrayList();
+        for (String id : Splitter.on(',').trimResults().omitEmptyStrings().split(joined)) {
+            try {
+                ids.add(Integer.parseInt(id));
+            } catch (NumberFormatException e) {
+                throw new CommandException(Messages.COMMAND_INVALID_NUMBER);
             }
-            Iterable<NPC> transformed = Iterables.transform(ids, new Function<Integer, NPC>() {
-                @Override
-                public NPC apply(@Nullable Integer arg0) {
-                    if (arg0 == null)
-                        return null;
-                    return CitizensAPI.getNPCRegistry().getById(arg0);
-                }
-            });
-            for (NPC toApply : transformed) {
-                template.apply(toApply);
-                appliedCount++;
+        }
+        Messaging.sendTr(sender, Messages.TEMPLATE_APPLYING, ids.size());
+        BatchApplyTask task = new BatchApplyTask(template, ids, sender);
+        task.taskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, task, 0, 1);
+    }
+
+    /**
+     * Applies a template to a list of NPCs, spread over several ticks, and
+     * saves once at the end.
+     */
+    private class BatchApplyTask implements Runnable {
+        private int applied;
+        private final Iterator<Integer> ids;
+        private final CommandSender sender;
+        private int taskId = -1;
+        private final Template template;
+
+        private BatchApplyTask(Template template, List<Integer> ids, CommandSender sender) {
+            this.template = template;
+            this.ids = ids.iterator();
+            this.sender = sender;
+        }
+
+        @Override
+        public void run() {
+            int budget = Setting.TEMPLATES_APPLIED_PER_TICK.asInt();
+            while (budget-- > 0 && ids.hasNext()) {
+                NPC npc = CitizensAPI.getNPCRegistry().getById(ids.next());
+                if (npc == null)
+                    continue;
+                template.apply(npc);
+                applied++;
             }
+            if (ids.hasNext())
+                return;
+            Bukkit.getScheduler().cancelTask(taskId);
+            plugin.storeNPCs();
+            plugin.getNPCDataStore().saveToDisk();
+            Messaging.sendTr(sender, Messages.TEMPLATE_APPLIED, applied);
         }
-        Messaging.sendTr(sender, Messages.TEMPLATE_APPLIED, appliedCount);
     }
 
     @Command(
@@ -0,0 +1,26 @@
+package net.citizensnpcs.npc;
+
+/**
+ * How much of its update a spawned NPC runs, based on the distance to the
+ * nearest player in its world.
+ *
+ * Tiers throttle every trait on the NPC, including those added by other
+ * plugins, so they are only assigned when <code>npc.activation.enabled</code>
+ * is turned on. Otherwise every NPC stays {@link #ACTIVE}.
+ */
+public enum ActivationTier {
+    /**
+     * Runs everything every tick.
+     */
+    ACTIVE,
+    /**
+     * Runs traits and idle entity AI every few ticks. Navigation still runs
+     * every tick so that routes are walked at full speed.
+     */
+    REDUCED,
+    /**
+     * Skips traits, entity AI and pathfinding. NPCs navigating to a location
+     * are moved straight towards it every so often instead.
+     */
+    FROZEN;
+}
@@ -0,0 +1,116 @@
+package net.citizensnpcs.npc;
+
+import java.util.List;
+
+import net.citizensnpcs.Settings.Setting;
+import net.citizensnpcs.api.npc.NPC;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Periodically assigns every spawned NPC an {@link ActivationTier}. Each pass
+ * lowers the NPCs raised by the previous pass, and those spawned since, to
+ * frozen, and then raises the NPCs in the {@link NPCChunkIndex} chunks within
+ * the reduced-rate range of each player. A pass therefore only looks at NPCs
+ * near players, however many NPCs are registered.
+ */
+public class ActivationTracker implements Runnable {
+    private final int[] counts = new int[ActivationTier.values().length];
+    private final boolean enabled = Setting.ACTIVATION_TIERS_ENABLED.asBoolean();
+    // the NPCs that may be above frozen, to be lowered by the next pass
+    private List<CitizensNPC> raised = Lists.newArrayList();
+    private final CitizensNPCRegistry registry;
+
+    public ActivationTracker(CitizensNPCRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Returns the number of spawned NPCs in the tier as of the last pass.
+     */
+    public int getCount(ActivationTier tier) {
+        return counts[tier.ordinal()];
+    }
+
+    /**
+     * Returns whether tiers were enabled when the tracker was created, which
+     * is when it should be scheduled.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private void raiseAround(Player player, NPCChunkIndex chunks, double activeRangeSquared, double reducedRange,
+            List<CitizensNPC> raising, int[] updated) {
+        Location centre = player.getLocation(PLAYER_LOCATION);
+        String world = centre.getWorld().getName();
+        double reducedRangeSquared = reducedRange * reducedRange;
+        int minX = (int) Math.floor(centre.getX() - reducedRange) >> 4;
+        int maxX = (int) Math.floor(centre.getX() + reducedRange) >> 4;
+        int minZ = (int) Math.floor(centre.getZ() - reducedRange) >> 4;
+        int maxZ = (int) Math.floor(centre.getZ() + reducedRange) >> 4;
+        for (int x = minX; x <= maxX; x++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                for (NPC npc : chunks.getNPCsInChunk(world, x, z)) {
+                    CitizensNPC citizensNPC = (CitizensNPC) npc;
+                    ActivationTier current = citizensNPC.getActivationTier();
+                    if (current == ActivationTier.ACTIVE || !npc.isSpawned())
+                        continue;
+                    double distance = npc.getBukkitEntity().getLocation(NPC_LOCATION).distanceSquared(centre);
+                    ActivationTier tier = distance <= activeRangeSquared ? ActivationTier.ACTIVE
+                            : distance <= reducedRangeSquared ? ActivationTier.REDUCED : current;
+                    if (tier == current)
+                        continue;
+                    if (current == ActivationTier.FROZEN) {
+                        raising.add(citizensNPC);
+                    } else
+                        updated[current.ordinal()]--;
+                    updated[tier.ordinal()]++;
+                    citizensNPC.setActivationTier(tier);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        // despawned NPCs may still be listed, which is harmless as spawning
+        // sets the tier again
+        for (int i = 0; i < raised.size(); i++) {
+            raised.get(i).setActivationTier(ActivationTier.FROZEN);
+        }
+        double activeRange = Setting.ACTIVATION_FULL_RATE_RANGE.asDouble();
+        double reducedRange = Math.max(activeRange, Setting.ACTIVATION_REDUCED_RATE_RANGE.asDouble());
+        NPCChunkIndex chunks = registry.getChunkIndex();
+        List<CitizensNPC> raising = Lists.newArrayListWithCapacity(raised.size());
+        int[] updated = new int[counts.length];
+        for (World world : Bukkit.getWorlds()) {
+            for (Player player : world.getPlayers()) {
+                if (!registry.isNPC(player))
+                    raiseAround(player, chunks, activeRange * activeRange, reducedRange, raising, updated);
+            }
+        }
+        raised = raising;
+        // the chunk index holds every spawned NPC
+        updated[ActivationTier.FROZEN.ordinal()] = chunks.size() - updated[ActivationTier.ACTIVE.ordinal()]
+                - updated[ActivationTier.REDUCED.ordinal()];
+        System.arraycopy(updated, 0, counts, 0, counts.length);
+    }
+
+    /**
+     * Called when an NPC spawns, which makes it active until the next pass
+     * decides its tier.
+     */
+    void track(CitizensNPC npc) {
+        if (enabled)
+            raised.add(npc);
+    }
+
+    private static final Location NPC_LOCATION = new Location(null, 0, 0, 0);
+    private static final Location PLAYER_LOCATION = new Location(null, 0, 0, 0);
+}
@@ -1,6 +1,7 @@
 package net.citizensnpcs.npc;
 
-import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -13,15 +14,22 @@ import net.citizensnpcs.api.event.NPCDespawnEvent;
 import net.citizensnpcs.api.event.NPCSpawnEvent;
 import net.citizensnpcs.api.exception.NPCLoadException;
 import net.citizensnpcs.api.npc.AbstractNPC;
-import net.citizensnpcs.api.persistence.PersistenceLoader;
 import net.citizensnpcs.api.trait.Trait;
+import net.citizensnpcs.api.trait.trait.MobType;
+import net.citizensnpcs.api.trait.trait.Owner;
 import net.citizensnpcs.api.trait.trait.Spawned;
 import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.api.util.MemoryDataKey;
+import net.citizensnpcs.api.util.Storage;
 import net.citizensnpcs.npc.ai.CitizensNavigator;
 import net.citizensnpcs.trait.CurrentLocation;
+import net.citizensnpcs.trait.ScheduledTrait;
 import net.citizensnpcs.util.Messages;
 import net.citizensnpcs.util.Messaging;
 import net.citizensnpcs.util.NMS;
+import net.citizensnpcs.util.PartialStorage;
+import net.citizensnpcs.util.PersistenceCodec;
+import net.citizensnpcs.util.StorageHelper;
 import net.citizensnpcs.util.Util;
 import net.minecraft.server.v1_4_5.EntityLiving;
 
@@ -33,20 +41,78 @@ import org.bukkit.event.entity.CreatureSpawnEvent.SpawnReason;
 import org.bukkit.metadata.FixedMetadataValue;
 
 import com.google.common.base.Function;
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 public class CitizensNPC extends AbstractNPC {
+    private ActivationTier activationTier = ActivationTier.ACTIVE;
+    private boolean dirty = true;
+    private final Set<String> dirtyTraits = Sets.newHashSet();
     private EntityController entityController;
     private final CitizensNavigator navigator = new CitizensNavigator(this);
-    private final List<String> removedTraits = Lists.newArrayList();
-
-    public CitizensNPC(int id, String name, EntityController entityController) {
+    private final CitizensNPCRegistry registry;
+    private final Set<String> removedTraits = Sets.newHashSet();
+    // hashes of the saved output of the NPC's own data and untracked traits
+    private final Map<String, Long> savedHashes = Maps.newHashMap();
+    private final Map<String, Long> stagedHashes = Maps.newHashMap();
+    private String traitNames;
+    private int traitTicks;
+    private DataKey unloadedData;
+    private Storage unloadedStorage;
+    private Set<Class<? extends Trait>> unloadedTraits;
+
+    public CitizensNPC(int id, String name, EntityController entityController, CitizensNPCRegistry registry) {
         super(id, name);
         Preconditions.checkNotNull(entityController);
         this.entityController = entityController;
+        this.registry = registry;
+    }
+
+    @Override
+    public void addTrait(Trait trait) {
+        if (unloadedData != null)
+            hydrate();
+        boolean added = !traits.containsKey(trait.getClass());
+        super.addTrait(trait);
+        if (added && isRegistered())
+            registry.updateTraitUsage(trait.getClass(), 1);
+        dirty = true;
+        traitNames = null;
+        // may be called from the super constructor before fields are set
+        if (dirtyTraits != null) {
+            markDirty(trait);
+            removedTraits.remove(trait.getName());
+        }
+    }
+
+    /**
+     * Marks every part of the NPC as saved. Called once the NPC's data has
+     * been written to the main store.
+     */
+    public void clearDirty() {
+        dirty = false;
+        dirtyTraits.clear();
+        navigator.markClean();
+        savedHashes.putAll(stagedHashes);
+        stagedHashes.clear();
+    }
+
+    /**
+     * Adds <code>delta</code> to the registry's usage count of each trait the
+     * NPC has, including traits that are not loaded yet.
+     */
+    void countTraits(int delta) {
+        for (Class<? extends Trait> clazz : traits.keySet())
+            registry.updateTraitUsage(clazz, delta);
+        if (unloadedTraits != null) {
+            for (Class<? extends Trait> clazz : unloadedTraits)
+                registry.updateTraitUsage(clazz, delta);
+        }
     }
 
     @Override
@@ -69,6 +135,7 @@ public class CitizensNPC extends AbstractNPC {
         for (Trait trait : traits.values())
             trait.onDespawn();
         entityController.remove();
+        registry.getChunkIndex().remove(this);
 
         return true;
     }
@@ -78,6 +145,10 @@ public class CitizensNPC extends AbstractNPC {
         return entityController.getBukkitEntity();
     }
 
+    public ActivationTier getActivationTier() {
+        return activationTier;
+    }
+
     @Deprecated
     public EntityLiving getHandle() {
         return ((CraftLivingEntity) getBukkitEntity()).getHandle();
@@ -89,91 +160,333 @@ public class CitizensNPC extends AbstractNPC {
     }
 
     @Override
-    public boolean isSpawned() {
-        return getBukkitEntity() != null;
+    public <T extends Trait> T getTrait(Class<T> clazz) {
+        if (unloadedData != null && !STUB_TRAITS.contains(clazz))
+            hydrate();
+        return super.getTrait(clazz);
     }
 
-    public void load(final DataKey root) {
-        metadata.loadFrom(root.getRelative("metadata"));
-        // Load traits
+    /**
+     * Returns the number of times the NPC's traits have been run, which
+     * {@link ScheduledTrait}s count their intervals in.
+     */
+    public int getTraitTicks() {
+        return traitTicks;
+    }
+
+    @Override
+    public Iterable<Trait> getTraits() {
+        if (unloadedData != null)
+            hydrate();
+        return super.getTraits();
+    }
 
+    private Iterable<DataKey> getTraitKeys(final DataKey root) {
         String traitNames = root.getString("traitnames");
-        Iterable<DataKey> keys = traitNames.isEmpty() ? root.getRelative("traits").getSubKeys() : Iterables
-                .transform(Splitter.on(',').split(traitNames), new Function<String, DataKey>() {
+        return traitNames.isEmpty() ? root.getRelative("traits").getSubKeys() : Iterables.transform(
+                Splitter.on(',').split(traitNames), new Function<String, DataKey>() {
                     @Override
                     public DataKey apply(@Nullable String input) {
-                        return root.getRelative("traits." + input);
+                        return root.getRelative(getTraitPath(input));
                     }
                 });
-        for (DataKey traitKey : keys) {
+    }
+
+    /**
+     * Loads the traits left out by {@link #loadLazily(DataKey, Storage)}.
+     * Traits loaded here come straight from storage and so are not marked
+     * dirty.
+     */
+    private void hydrate() {
+        DataKey root = unloadedData;
+        unloadedData = null;
+        // counted again as they are added
+        if (isRegistered()) {
+            for (Class<? extends Trait> clazz : unloadedTraits)
+                registry.updateTraitUsage(clazz, -1);
+        }
+        unloadedTraits = null;
+        boolean wasDirty = dirty;
+        Set<String> wereDirty = Sets.newHashSet(dirtyTraits);
+        synchronized (unloadedStorage) {
+            // the storage may have read only the stub traits on load
+            if (unloadedStorage instanceof PartialStorage)
+                root = ((PartialStorage) unloadedStorage).readNPC(getId());
+            for (DataKey traitKey : getTraitKeys(root)) {
+                if (!STUB_TRAIT_NAMES.contains(traitKey.name()))
+                    loadTrait(traitKey);
+            }
+        }
+        unloadedStorage = null;
+        dirty = wasDirty;
+        dirtyTraits.retainAll(wereDirty);
+        rememberSavedState();
+    }
+
+    @Override
+    public boolean hasTrait(Class<? extends Trait> clazz) {
+        // answered without loading, as this may be called off the main thread
+        if (unloadedTraits != null && unloadedTraits.contains(clazz))
+            return true;
+        return super.hasTrait(clazz);
+    }
+
+    /**
+     * Returns whether the saved output differs from the last stored output
+     * under the same name, staging its hash to be recorded by
+     * {@link #clearDirty()}.
+     */
+    private boolean isChanged(String name, DataKey saved) {
+        long hash = StorageHelper.hash(saved);
+        stagedHashes.put(name, hash);
+        Long previous = savedHashes.get(name);
+        return previous == null || previous != hash;
+    }
+
+    /**
+     * Returns whether every trait has been loaded, which is false for NPCs
+     * loaded by {@link #loadLazily(DataKey, Storage)} until they are first
+     * spawned or one of their traits is requested.
+     */
+    public boolean isFullyLoaded() {
+        return unloadedData == null;
+    }
+
+    private boolean isRegistered() {
+        // may be called from the super constructor before fields are set
+        return registry != null && registry.getById(getId()) == this;
+    }
+
+    @Override
+    public boolean isSpawned() {
+        return getBukkitEntity() != null;
+    }
+
+    public void load(final DataKey root) {
+        metadata.loadFrom(root.getRelative("metadata"));
+        // Load traits
+        for (DataKey traitKey : getTraitKeys(root))
+            loadTrait(traitKey);
+        navigator.load(root.getRelative("navigator"));
+        finishLoad();
+        rememberSavedState();
+    }
+
+    /**
+     * Loads only what is needed to place and index the NPC: its metadata,
+     * navigator settings, location, spawned state, owner and type. The
+     * remaining traits are loaded from <code>root</code> when the NPC is first
+     * spawned or one of them is requested, holding the storage's lock so that
+     * writes to it do not run at the same time. A {@link PartialStorage} is
+     * asked to read the rest of the NPC first.
+     */
+    public void loadLazily(final DataKey root, Storage storage) {
+        metadata.loadFrom(root.getRelative("metadata"));
+        unloadedTraits = Sets.newHashSet();
+        for (DataKey traitKey : getTraitKeys(root)) {
+            if (STUB_TRAIT_NAMES.contains(traitKey.name())) {
+                loadTrait(traitKey);
+                continue;
+            }
             if (traitKey.keyExists("enabled") && !traitKey.getBoolean("enabled"))
                 continue;
             Class<? extends Trait> clazz = CitizensAPI.getTraitFactory().getTraitClass(traitKey.name());
-            Trait trait;
-            if (hasTrait(clazz)) {
-                trait = getTrait(clazz);
-            } else {
-                trait = CitizensAPI.getTraitFactory().getTrait(clazz);
-                if (trait == null) {
-                    Messaging.severeTr(Messages.SKIPPING_BROKEN_TRAIT, traitKey.name(), getId());
-                    continue;
-                }
-                addTrait(trait);
-            }
-            loadTrait(trait, traitKey);
+            if (clazz != null)
+                unloadedTraits.add(clazz);
         }
+        navigator.load(root.getRelative("navigator"));
+        unloadedData = root;
+        unloadedStorage = storage;
+        finishLoad();
+        rememberSavedState();
+    }
 
-        // Spawn the NPC
-        CurrentLocation spawnLocation = getTrait(CurrentLocation.class);
-        if (getTrait(Spawned.class).shouldSpawn() && spawnLocation.getLocation() != null)
-            spawn(spawnLocation.getLocation());
+    private void finishLoad() {
+        updateIndex();
+        // Queue the NPC to be spawned
+        Location spawnLocation = getTrait(CurrentLocation.class).getLocation();
+        if (getTrait(Spawned.class).shouldSpawn() && spawnLocation != null && !isSpawned())
+            registry.getSpawnQueue().enqueue(this, spawnLocation);
 
+        markDirty();
+        for (Trait trait : traits.values())
+            markDirty(trait);
+    }
+
+    /**
+     * Loads data written by {@link #saveOwnData(DataKey)} without touching
+     * the NPC's traits.
+     */
+    void loadOwnData(DataKey root) {
+        String name = root.getString("name");
+        if (!name.isEmpty() && !name.equals(getFullName()))
+            setName(name);
+        metadata.loadFrom(root.getRelative("metadata"));
         navigator.load(root.getRelative("navigator"));
+        markDirty();
+    }
+
+    private void loadTrait(DataKey traitKey) {
+        if (traitKey.keyExists("enabled") && !traitKey.getBoolean("enabled"))
+            return;
+        Class<? extends Trait> clazz = CitizensAPI.getTraitFactory().getTraitClass(traitKey.name());
+        Trait trait;
+        if (hasTrait(clazz)) {
+            trait = getTrait(clazz);
+        } else {
+            trait = CitizensAPI.getTraitFactory().getTrait(clazz);
+            if (trait == null) {
+                Messaging.severeTr(Messages.SKIPPING_BROKEN_TRAIT, traitKey.name(), getId());
+                return;
+            }
+            addTrait(trait);
+        }
+        loadTrait(trait, traitKey);
     }
 
-    private void loadTrait(Trait trait, DataKey traitKey) {
+    void loadTrait(Trait trait, DataKey traitKey) {
         try {
             trait.load(traitKey);
-            PersistenceLoader.load(trait, traitKey);
+            PersistenceCodec.load(trait, traitKey);
         } catch (NPCLoadException ex) {
             Messaging.logTr(Messages.TRAIT_LOAD_FAILED, traitKey.name(), getId());
         }
     }
 
+    /**
+     * Marks the NPC's own data (name, metadata, navigator settings and trait
+     * list) as changed.
+     */
+    public void markDirty() {
+        dirty = true;
+    }
+
+    public void markDirty(Trait trait) {
+        dirtyTraits.add(trait.getName());
+        if (trait instanceof Owner || trait instanceof MobType)
+            updateIndex();
+    }
+
+    /**
+     * Records the saved output of the NPC's own data and of each untracked
+     * trait that has none recorded yet, as it was just loaded from storage.
+     */
+    private void rememberSavedState() {
+        if (!savedHashes.containsKey(OWN_DATA)) {
+            MemoryDataKey own = new MemoryDataKey();
+            saveOwnData(own);
+            savedHashes.put(OWN_DATA, StorageHelper.hash(own));
+        }
+        for (Trait trait : traits.values()) {
+            if (CitizensTraitFactory.isChangeTracked(trait) || savedHashes.containsKey(trait.getName()))
+                continue;
+            MemoryDataKey saved = new MemoryDataKey();
+            saveTrait(trait, saved);
+            savedHashes.put(trait.getName(), StorageHelper.hash(saved));
+        }
+    }
+
     @Override
     public void removeTrait(Class<? extends Trait> clazz) {
+        if (unloadedData != null)
+            hydrate();
         Trait present = traits.get(clazz);
-        if (present != null)
+        if (present != null) {
             removedTraits.add(present.getName());
+            traitNames = null;
+            dirty = true;
+            if (isRegistered())
+                registry.updateTraitUsage(clazz, -1);
+        }
         super.removeTrait(clazz);
+        if (present != null)
+            savedHashes.remove(present.getName());
+        if (present instanceof Owner || present instanceof MobType)
+            updateIndex();
     }
 
     private void removeTraitData(DataKey root) {
         for (String name : removedTraits) {
-            root.removeKey("traits." + name);
+            root.removeKey(getTraitPath(name));
         }
         removedTraits.clear();
     }
 
     public void save(DataKey root) {
-        root.setString("name", getFullName());
-
-        metadata.saveTo(root.getRelative("metadata"));
-        navigator.save(root.getRelative("navigator"));
+        save(root, false);
+    }
 
+    /**
+     * Saves the NPC to the given key, returning whether anything was written.
+     * If <code>onlyDirty</code> is true, only the parts that have changed
+     * since the last call to {@link #clearDirty()} are written and the key is
+     * assumed to already hold the rest. NPCs that are not fully loaded are
+     * always saved this way.
+     *
+     * Traits that mark themselves dirty are only saved when they have. The
+     * NPC's own data, which includes metadata set through the API, and every
+     * other trait are saved into memory and only written if their output
+     * differs from what was last stored.
+     */
+    public boolean save(DataKey root, boolean onlyDirty) {
+        boolean loaded = unloadedData == null;
+        onlyDirty |= !loaded;
+        stagedHashes.clear();
+        MemoryDataKey own = new MemoryDataKey();
+        saveOwnData(own);
+        boolean ownChanged = isChanged(OWN_DATA, own);
+        boolean saveSelf = !onlyDirty || dirty || navigator.isDirty() || ownChanged;
+        if (saveSelf)
+            StorageHelper.copy(own, root);
+
+        boolean wrote = saveSelf;
         // Save all existing traits
-        StringBuilder traitNames = new StringBuilder();
         for (Trait trait : traits.values()) {
-            DataKey traitKey = root.getRelative("traits." + trait.getName());
-            trait.save(traitKey);
-            PersistenceLoader.save(trait, traitKey);
-            removedTraits.remove(trait.getName());
-            traitNames.append(trait.getName() + ",");
+            String name = trait.getName();
+            boolean marked = !onlyDirty || dirtyTraits.contains(name);
+            if (CitizensTraitFactory.isChangeTracked(trait)) {
+                if (!marked)
+                    continue;
+                saveTrait(trait, root.getRelative(getTraitPath(name)));
+                wrote = true;
+                continue;
+            }
+            MemoryDataKey saved = new MemoryDataKey();
+            saveTrait(trait, saved);
+            if (!isChanged(name, saved) && !marked)
+                continue;
+            StorageHelper.copy(saved, root.getRelative(getTraitPath(name)));
+            wrote = true;
+        }
+        if (saveSelf && loaded && !traits.isEmpty()) {
+            if (traitNames == null)
+                traitNames = TRAIT_NAME_JOINER.join(Iterables.transform(traits.values(), TRAIT_NAME));
+            root.setString("traitnames", traitNames);
         }
-        if (traitNames.length() > 0) {
-            root.setString("traitnames", traitNames.substring(0, traitNames.length() - 1));
+        if (!removedTraits.isEmpty()) {
+            removeTraitData(root);
+            wrote = true;
         }
-        removeTraitData(root);
+        return wrote;
+    }
+
+    /**
+     * Saves the NPC's name, metadata and navigator settings, but none of its
+     * traits.
+     */
+    void saveOwnData(DataKey root) {
+        root.setString("name", getFullName());
+        metadata.saveTo(root.getRelative("metadata"));
+        navigator.save(root.getRelative("navigator"));
+    }
+
+    void saveTrait(Trait trait, DataKey traitKey) {
+        trait.save(traitKey);
+        PersistenceCodec.save(trait, traitKey);
+    }
+
+    void setActivationTier(ActivationTier tier) {
+        activationTier = tier;
     }
 
     public void setEntityController(EntityController newController) {
@@ -189,11 +502,36 @@ public class CitizensNPC extends AbstractNPC {
             spawn(prev);
     }
 
+    @Override
+    public void setName(String name) {
+        super.setName(name);
+        markDirty();
+        updateIndex();
+    }
+
+    /**
+     * Returns whether the NPC's entity should run its AI this tick, given its
+     * {@link ActivationTier}.
+     */
+    public boolean shouldUpdateAI() {
+        switch (activationTier) {
+            case FROZEN:
+                return false;
+            case REDUCED:
+                return navigator.isNavigating()
+                        || registry.getTraitScheduler().isDue(this, Setting.ACTIVATION_REDUCED_INTERVAL.asInt());
+            default:
+                return true;
+        }
+    }
+
     @Override
     public boolean spawn(Location at) {
         Preconditions.checkNotNull(at, "location cannot be null");
         if (isSpawned())
             return false;
+        if (unloadedData != null)
+            hydrate();
 
         entityController.spawn(at, this);
         EntityLiving mcEntity = getHandle();
@@ -216,10 +554,18 @@ public class CitizensNPC extends AbstractNPC {
         NMS.setHeadYaw(mcEntity, at.getYaw());
         getBukkitEntity().setMetadata(NPC_METADATA_MARKER,
                 new FixedMetadataValue(CitizensAPI.getPlugin(), true));
+        registry.getChunkIndex().add(this, at);
+        // run fully until the activation tracker next looks at the NPC
+        activationTier = ActivationTier.ACTIVE;
+        registry.getActivationTracker().track(this);
 
         // Set the spawned state
         getTrait(CurrentLocation.class).setLocation(at);
-        getTrait(Spawned.class).setSpawned(true);
+        Spawned spawned = getTrait(Spawned.class);
+        if (!spawned.shouldSpawn()) {
+            spawned.setSpawned(true);
+            markDirty(spawned);
+        }
 
         navigator.onSpawn();
         // Modify NPC using traits after the entity has been created
@@ -229,12 +575,34 @@ public class CitizensNPC extends AbstractNPC {
         return true;
     }
 
+    private void updateIndex() {
+        // only registered NPCs are indexed
+        if (isRegistered())
+            registry.getIndex().update(this);
+    }
+
     @Override
     public void update() {
         try {
-            super.update();
+            if (activationTier == ActivationTier.FROZEN) {
+                if (!isSpawned())
+                    return;
+                registry.getChunkIndex().update(this, getBukkitEntity().getLocation(CHUNK_LOCATION));
+                int interval = Setting.ACTIVATION_FROZEN_STEP_INTERVAL.asInt();
+                if (registry.getTraitScheduler().isDue(this, interval))
+                    navigator.advanceWhileFrozen(interval);
+                return;
+            }
+            boolean runTraits = activationTier == ActivationTier.ACTIVE
+                    || registry.getTraitScheduler().isDue(this, Setting.ACTIVATION_REDUCED_INTERVAL.asInt());
+            if (runTraits) {
+                traitTicks = (traitTicks + 1) & Integer.MAX_VALUE;
+                super.update();
+            }
             if (isSpawned()) {
-                NMS.trySwim(getBukkitEntity());
+                registry.getChunkIndex().update(this, getBukkitEntity().getLocation(CHUNK_LOCATION));
+                if (runTraits)
+                    NMS.trySwim(getBukkitEntity());
                 navigator.run();
             }
         } catch (Exception ex) {
@@ -243,5 +611,35 @@ public class CitizensNPC extends AbstractNPC {
         }
     }
 
+    /**
+     * Returns the path of a trait's key relative to the NPC's key. Paths are
+     * cached, as they are needed for every trait on every save.
+     */
+    private static String getTraitPath(String name) {
+        String path = TRAIT_PATHS.get(name);
+        if (path == null) {
+            path = "traits." + name;
+            TRAIT_PATHS.put(name, path);
+        }
+        return path;
+    }
+
+    private static final Location CHUNK_LOCATION = new Location(null, 0, 0, 0);
     private static final String NPC_METADATA_MARKER = "NPC";
+    // never a trait name, as those are not empty
+    private static final String OWN_DATA = "";
+    private static final Function<Trait, String> TRAIT_NAME = new Function<Trait, String>() {
+        @Override
+        public String apply(Trait input) {
+            return input.getName();
+        }
+    };
+    private static final Joiner TRAIT_NAME_JOINER = Joiner.on(',');
+    private static final Map<String, String> TRAIT_PATHS = Maps.newConcurrentMap();
+    private static final Set<Class<? extends Trait>> STUB_TRAITS = ImmutableSet.<Class<? extends Trait>> of(
+            CurrentLocation.class, MobType.class, Owner.class, Spawned.class);
+    /**
+     * The names of the traits loaded by {@link #loadLazily(DataKey, Storage)}.
+     */
+    public static final Set<String> STUB_TRAIT_NAMES = ImmutableSet.of("location", "owner", "spawned", "type");
 }
\ No newline at end of file
@@ -1,21 +1,34 @@
 package net.citizensnpcs.npc;
 
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.citizensnpcs.NPCDataStore;
 import net.citizensnpcs.api.npc.NPC;
 import net.citizensnpcs.api.npc.NPCRegistry;
 import net.citizensnpcs.api.trait.Trait;
 import net.citizensnpcs.npc.ai.NPCHolder;
+import net.citizensnpcs.trait.ScheduledTrait;
 import net.citizensnpcs.util.ByIdArray;
+import net.citizensnpcs.util.IdAllocator;
 
 import org.bukkit.craftbukkit.v1_4_5.entity.CraftEntity;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.EntityType;
 
+import com.google.common.collect.Maps;
+
 public class CitizensNPCRegistry implements NPCRegistry {
+    private final ActivationTracker activationTracker = new ActivationTracker(this);
+    private final NPCChunkIndex chunkIndex = new NPCChunkIndex();
+    private final IdAllocator ids = new IdAllocator();
+    private final NPCIndex index = new NPCIndex();
     private final ByIdArray<NPC> npcs = new ByIdArray<NPC>();
     private final NPCDataStore saves;
+    private final SpawnQueue spawnQueue = new SpawnQueue(this);
+    private final TraitScheduler traitScheduler = new TraitScheduler();
+    private final ConcurrentMap<Class<? extends Trait>, AtomicInteger> traitUsage = Maps.newConcurrentMap();
 
     public CitizensNPCRegistry(NPCDataStore store) {
         saves = store;
@@ -25,18 +38,22 @@ public class CitizensNPCRegistry implements NPCRegistry {
         CitizensNPC npc = getByType(type, id, name);
         if (npc == null)
             throw new IllegalStateException("Could not create NPC.");
+        ids.markUsed(id);
         npcs.put(npc.getId(), npc);
+        index.update(npc);
+        npc.countTraits(1);
         return npc;
     }
 
     @Override
     public NPC createNPC(EntityType type, String name) {
-        return createNPC(type, generateUniqueId(), name);
+        return createNPC(type, ids.allocate(), name);
     }
 
     @Override
     public void deregister(NPC npc) {
-        npcs.remove(npc.getId());
+        if (npcs.remove(npc.getId()) != null)
+            unregister(npc);
         saves.remove(npc);
         npc.despawn();
     }
@@ -48,19 +65,20 @@ public class CitizensNPCRegistry implements NPCRegistry {
             NPC npc = itr.next();
             itr.remove();
             npc.despawn();
-            for (Trait t : npc.getTraits())
-                t.onRemove();
+            // traits that were never loaded have nothing to clean up
+            if (((CitizensNPC) npc).isFullyLoaded()) {
+                for (Trait t : npc.getTraits())
+                    t.onRemove();
+            }
             saves.remove(npc);
         }
     }
 
-    private int generateUniqueId() {
-        int count = 0;
-        while (getById(count++) != null)
-            ; // TODO: doesn't respect existing save data that might not have
-              // been loaded. This causes DBs with NPCs that weren't loaded to
-              // have conflicting primary keys.
-        return count - 1;
+    /**
+     * Returns the tracker assigning spawned NPCs their {@link ActivationTier}.
+     */
+    public ActivationTracker getActivationTracker() {
+        return activationTracker;
     }
 
     @Override
@@ -70,8 +88,49 @@ public class CitizensNPCRegistry implements NPCRegistry {
         return npcs.get(id);
     }
 
+    /**
+     * Returns the index of spawned NPCs by world and chunk.
+     */
+    public NPCChunkIndex getChunkIndex() {
+        return chunkIndex;
+    }
+
+    /**
+     * Returns the index of registered NPCs by owner, type and name.
+     */
+    public NPCIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the allocator used to assign IDs to newly created NPCs. The
+     * allocator is seeded by {@link NPCDataStore} so that IDs belonging to
+     * saved NPCs, loaded or not, are never handed out again.
+     */
+    public IdAllocator getIdAllocator() {
+        return ids;
+    }
+
+    /**
+     * Returns the scheduler deciding which ticks {@link ScheduledTrait}s run
+     * on.
+     */
+    public TraitScheduler getTraitScheduler() {
+        return traitScheduler;
+    }
+
+    /**
+     * Returns the number of registered NPCs with the trait. Kept up to date as
+     * NPCs and traits are added and removed, and safe to read from any
+     * thread.
+     */
+    public int getTraitUsage(Class<? extends Trait> clazz) {
+        AtomicInteger count = traitUsage.get(clazz);
+        return count == null ? 0 : count.get();
+    }
+
     private CitizensNPC getByType(EntityType type, int id, String name) {
-        return new CitizensNPC(id, name, EntityControllers.createForType(type));
+        return new CitizensNPC(id, name, EntityControllers.createForType(type), this);
     }
 
     @Override
@@ -84,13 +143,72 @@ public class CitizensNPCRegistry implements NPCRegistry {
         return handle instanceof NPCHolder ? ((NPCHolder) handle).getNPC() : null;
     }
 
+    /**
+     * Returns the queue that spreads NPC spawns over several ticks.
+     */
+    public SpawnQueue getSpawnQueue() {
+        return spawnQueue;
+    }
+
     @Override
     public boolean isNPC(Entity entity) {
         return getNPC(entity) != null;
     }
 
+    /**
+     * Returns an iterator over the registered NPCs in order of ID. Removing
+     * an NPC through the iterator unregisters it as {@link #deregister(NPC)}
+     * does, but leaves its saved data alone.
+     */
     @Override
     public Iterator<NPC> iterator() {
-        return npcs.iterator();
+        return new Iterator<NPC>() {
+            private NPC current;
+            private final Iterator<NPC> itr = npcs.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return itr.hasNext();
+            }
+
+            @Override
+            public NPC next() {
+                return current = itr.next();
+            }
+
+            @Override
+            public void remove() {
+                itr.remove();
+                unregister(current);
+            }
+        };
+    }
+
+    /**
+     * Returns the number of registered NPCs.
+     */
+    public int size() {
+        return npcs.size();
+    }
+
+    /**
+     * Drops a removed NPC from the indexes and counts kept by the registry.
+     */
+    private void unregister(NPC npc) {
+        ((CitizensNPC) npc).countTraits(-1);
+        index.remove(npc);
+        spawnQueue.remove(npc.getId());
+        ids.release(npc.getId());
+    }
+
+    void updateTraitUsage(Class<? extends Trait> clazz, int delta) {
+        AtomicInteger count = traitUsage.get(clazz);
+        if (count == null) {
+            AtomicInteger created = new AtomicInteger();
+            count = traitUsage.putIfAbsent(clazz, created);
+            if (count == null)
+                count = created;
+        }
+        count.addAndGet(delta);
     }
 }
\ No newline at end of file
@@ -6,7 +6,6 @@ import java.util.Set;
 import net.citizensnpcs.Metrics;
 import net.citizensnpcs.Metrics.Graph;
 import net.citizensnpcs.api.CitizensAPI;
-import net.citizensnpcs.api.npc.NPC;
 import net.citizensnpcs.api.trait.Trait;
 import net.citizensnpcs.api.trait.TraitFactory;
 import net.citizensnpcs.api.trait.TraitInfo;
@@ -35,6 +34,7 @@ import net.citizensnpcs.trait.text.Text;
 import net.citizensnpcs.trait.waypoint.Waypoints;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
@@ -78,12 +78,7 @@ public class CitizensTraitFactory implements TraitFactory {
             graph.addPlotter(new Metrics.Plotter(entry.getKey()) {
                 @Override
                 public int getValue() {
-                    int numberUsingTrait = 0;
-                    for (NPC npc : CitizensAPI.getNPCRegistry()) {
-                        if (npc.hasTrait(traitClass))
-                            ++numberUsingTrait;
-                    }
-                    return numberUsingTrait;
+                    return ((CitizensNPCRegistry) CitizensAPI.getNPCRegistry()).getTraitUsage(traitClass);
                 }
             });
         }
@@ -132,5 +127,20 @@ public class CitizensTraitFactory implements TraitFactory {
         registered.put(info.getTraitName(), info.getTraitClass());
     }
 
+    /**
+     * Returns whether the trait marks its NPC dirty whenever its saved state
+     * changes. Other traits, including the API's traits whose setters can't
+     * mark the NPC, are saved into memory on each save and only written if
+     * their output has changed.
+     */
+    public static boolean isChangeTracked(Trait trait) {
+        return CHANGE_TRACKED_TRAITS.contains(trait.getClass());
+    }
+
+    private static final Set<Class<? extends Trait>> CHANGE_TRACKED_TRAITS = ImmutableSet
+            .<Class<? extends Trait>> of(Age.class, Anchors.class, Controllable.class, CurrentLocation.class,
+                    Gravity.class, LookClose.class, NPCSkeletonType.class, Poses.class, Powered.class,
+                    Saddle.class, Sheared.class, SlimeSize.class, VillagerProfession.class, WoolColor.class,
+                    ZombieModifier.class);
     private static final Set<String> INTERNAL_TRAITS = Sets.newHashSet();
 }
\ No newline at end of file
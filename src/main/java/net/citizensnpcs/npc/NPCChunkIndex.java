@@ -0,0 +1,155 @@
+package net.citizensnpcs.npc;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.util.ByIdArray;
+import net.citizensnpcs.util.LongObjectMap;
+
+import org.bukkit.Location;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Tracks the chunk that each spawned NPC is in, keyed per world by a packed
+ * chunk x/z long, so that chunk and world events only need to look at the
+ * NPCs that are actually inside them.
+ */
+public class NPCChunkIndex {
+    private final ByIdArray<Entry> entries = ByIdArray.create();
+    private final Map<String, LongObjectMap<List<NPC>>> worlds = Maps.newHashMap();
+
+    public void add(NPC npc, Location at) {
+        if (entries.contains(npc.getId()))
+            remove(npc);
+        Entry entry = new Entry(at.getWorld().getName(), toKey(at));
+        entries.put(npc.getId(), entry);
+        insert(npc, entry);
+    }
+
+    public void clear() {
+        entries.clear();
+        worlds.clear();
+    }
+
+    public List<NPC> getNPCsInChunk(String world, int x, int z) {
+        LongObjectMap<List<NPC>> chunks = worlds.get(world);
+        if (chunks == null)
+            return Collections.emptyList();
+        List<NPC> npcs = chunks.get(LongObjectMap.toChunkKey(x, z));
+        return npcs == null ? Collections.<NPC> emptyList() : Collections.unmodifiableList(npcs);
+    }
+
+    /**
+     * Returns the NPCs in every chunk overlapping the square that encloses the
+     * circle around <code>centre</code>. This includes every indexed NPC
+     * within <code>radius</code>, and some that are further away.
+     */
+    public List<NPC> getNPCsNear(Location centre, double radius) {
+        LongObjectMap<List<NPC>> chunks = worlds.get(centre.getWorld().getName());
+        if (chunks == null)
+            return Collections.emptyList();
+        int minX = (int) Math.floor(centre.getX() - radius) >> 4;
+        int maxX = (int) Math.floor(centre.getX() + radius) >> 4;
+        int minZ = (int) Math.floor(centre.getZ() - radius) >> 4;
+        int maxZ = (int) Math.floor(centre.getZ() + radius) >> 4;
+        List<NPC> found = Lists.newArrayList();
+        if (((long) maxX - minX + 1) * ((long) maxZ - minZ + 1) > chunks.size()) {
+            // fewer chunks hold NPCs than the square covers
+            for (long key : chunks.keys()) {
+                int x = LongObjectMap.getChunkX(key), z = LongObjectMap.getChunkZ(key);
+                if (x >= minX && x <= maxX && z >= minZ && z <= maxZ)
+                    found.addAll(chunks.get(key));
+            }
+            return found;
+        }
+        for (int x = minX; x <= maxX; x++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                List<NPC> npcs = chunks.get(LongObjectMap.toChunkKey(x, z));
+                if (npcs != null)
+                    found.addAll(npcs);
+            }
+        }
+        return found;
+    }
+
+    public List<NPC> getNPCsInWorld(String world) {
+        LongObjectMap<List<NPC>> chunks = worlds.get(world);
+        if (chunks == null)
+            return Collections.emptyList();
+        List<NPC> found = Lists.newArrayList();
+        for (long key : chunks.keys())
+            found.addAll(chunks.get(key));
+        return found;
+    }
+
+    private void insert(NPC npc, Entry entry) {
+        LongObjectMap<List<NPC>> chunks = worlds.get(entry.world);
+        if (chunks == null)
+            worlds.put(entry.world, chunks = new LongObjectMap<List<NPC>>());
+        List<NPC> npcs = chunks.get(entry.key);
+        if (npcs == null)
+            chunks.put(entry.key, npcs = Lists.newArrayListWithCapacity(2));
+        npcs.add(npc);
+    }
+
+    public void remove(NPC npc) {
+        Entry entry = entries.remove(npc.getId());
+        if (entry == null)
+            return;
+        LongObjectMap<List<NPC>> chunks = worlds.get(entry.world);
+        if (chunks == null)
+            return;
+        List<NPC> npcs = chunks.get(entry.key);
+        if (npcs == null)
+            return;
+        npcs.remove(npc);
+        if (npcs.isEmpty())
+            chunks.remove(entry.key);
+        if (chunks.isEmpty())
+            worlds.remove(entry.world);
+    }
+
+    /**
+     * Returns the number of indexed NPCs.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Moves the NPC to a new chunk bucket if it has crossed a chunk border or
+     * changed world since it was last indexed. Cheap enough to call every
+     * tick.
+     */
+    public void update(NPC npc, Location current) {
+        Entry entry = entries.get(npc.getId());
+        if (entry == null)
+            return;
+        String world = current.getWorld().getName();
+        long key = toKey(current);
+        if (entry.key == key && entry.world.equals(world))
+            return;
+        remove(npc);
+        entry = new Entry(world, key);
+        entries.put(npc.getId(), entry);
+        insert(npc, entry);
+    }
+
+    private static class Entry {
+        private final long key;
+        private final String world;
+
+        private Entry(String world, long key) {
+            this.world = world;
+            this.key = key;
+        }
+    }
+
+    private static long toKey(Location location) {
+        return LongObjectMap.toChunkKey(location.getBlockX() >> 4, location.getBlockZ() >> 4);
+    }
+}
@@ -0,0 +1,137 @@
+package net.citizensnpcs.npc;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+
+import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.api.trait.trait.MobType;
+import net.citizensnpcs.api.trait.trait.Owner;
+
+import org.bukkit.entity.EntityType;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Indexes registered NPCs by owner, entity type and name, so that these can be
+ * looked up without scanning the registry. Owner and name lookups ignore case.
+ * Each NPC is re-indexed when it is renamed or its {@link Owner} or
+ * {@link MobType} trait is marked dirty.
+ */
+public class NPCIndex {
+    private final Map<String, Set<NPC>> byName = Maps.newHashMap();
+    private final Map<String, Set<NPC>> byOwner = Maps.newHashMap();
+    private final Map<EntityType, Set<NPC>> byType = Maps.newEnumMap(EntityType.class);
+    private final Map<Integer, Entry> entries = Maps.newHashMap();
+
+    private <K> void add(Map<K, Set<NPC>> index, K key, NPC npc) {
+        if (key == null)
+            return;
+        Set<NPC> npcs = index.get(key);
+        if (npcs == null)
+            index.put(key, npcs = Sets.newTreeSet(BY_ID));
+        npcs.add(npc);
+    }
+
+    public void clear() {
+        byName.clear();
+        byOwner.clear();
+        byType.clear();
+        entries.clear();
+    }
+
+    private <K> Set<NPC> get(Map<K, Set<NPC>> index, K key) {
+        Set<NPC> npcs = index.get(key);
+        return npcs == null ? Collections.<NPC> emptySet() : Collections.unmodifiableSet(npcs);
+    }
+
+    /**
+     * Returns the NPCs whose name, without colours, equals the given name
+     * ignoring case, in order of ID.
+     */
+    public Set<NPC> getByName(String name) {
+        return get(byName, name.toLowerCase());
+    }
+
+    /**
+     * Returns the NPCs owned by the given name, ignoring case, in order of
+     * ID.
+     */
+    public Set<NPC> getByOwner(String owner) {
+        return get(byOwner, owner.toLowerCase());
+    }
+
+    public Set<NPC> getByType(EntityType type) {
+        return get(byType, type);
+    }
+
+    public void remove(NPC npc) {
+        Entry entry = entries.remove(npc.getId());
+        if (entry == null)
+            return;
+        remove(byName, entry.name, npc);
+        remove(byOwner, entry.owner, npc);
+        remove(byType, entry.type, npc);
+    }
+
+    private <K> void remove(Map<K, Set<NPC>> index, K key, NPC npc) {
+        if (key == null)
+            return;
+        Set<NPC> npcs = index.get(key);
+        if (npcs != null && npcs.remove(npc) && npcs.isEmpty())
+            index.remove(key);
+    }
+
+    /**
+     * Re-reads the NPC's name, owner and type and moves it between index
+     * entries where they have changed.
+     */
+    public void update(NPC npc) {
+        String name = npc.getName().toLowerCase();
+        String owner = npc.hasTrait(Owner.class) ? npc.getTrait(Owner.class).getOwner() : null;
+        if (owner != null)
+            owner = owner.toLowerCase();
+        EntityType type = npc.hasTrait(MobType.class) ? npc.getTrait(MobType.class).getType() : null;
+
+        Entry entry = entries.get(npc.getId());
+        if (entry != null && entry.npc != npc) {
+            // a new NPC has taken the ID, so the old one must not be kept
+            remove(entry.npc);
+            entry = null;
+        }
+        if (entry == null)
+            entries.put(npc.getId(), entry = new Entry(npc));
+        if (!name.equals(entry.name)) {
+            remove(byName, entry.name, npc);
+            add(byName, entry.name = name, npc);
+        }
+        if (owner == null ? entry.owner != null : !owner.equals(entry.owner)) {
+            remove(byOwner, entry.owner, npc);
+            add(byOwner, entry.owner = owner, npc);
+        }
+        if (type != entry.type) {
+            remove(byType, entry.type, npc);
+            add(byType, entry.type = type, npc);
+        }
+    }
+
+    private static class Entry {
+        private String name;
+        private final NPC npc;
+        private String owner;
+        private EntityType type;
+
+        private Entry(NPC npc) {
+            this.npc = npc;
+        }
+    }
+
+    private static final Comparator<NPC> BY_ID = new Comparator<NPC>() {
+        @Override
+        public int compare(NPC o1, NPC o2) {
+            return o1.getId() < o2.getId() ? -1 : o1.getId() == o2.getId() ? 0 : 1;
+        }
+    };
+}
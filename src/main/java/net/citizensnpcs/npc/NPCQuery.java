@@ -0,0 +1,366 @@
+package net.citizensnpcs.npc;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.api.trait.Trait;
+import net.citizensnpcs.api.trait.trait.MobType;
+import net.citizensnpcs.api.trait.trait.Owner;
+
+import org.bukkit.Location;
+import org.bukkit.entity.EntityType;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Finds the registered NPCs matching every given filter and returns one page
+ * of them in the chosen order.
+ *
+ * The owner and type filters are answered from the {@link NPCIndex}, and the
+ * world and radius filters from the {@link NPCChunkIndex}, so the latter only
+ * match spawned NPCs. Other filters are only checked against the smaller of
+ * these candidate sets. When sorting by ID the candidates are read in order
+ * and reading stops once the page is full and one more match has been seen;
+ * the total is only counted if it is asked for. Other orders keep only the
+ * best <code>offset + limit</code> matches, so the whole result is never
+ * sorted.
+ */
+public class NPCQuery {
+    private Location centre;
+    private int limit = Integer.MAX_VALUE;
+    private String namePrefix;
+    private int offset;
+    private final List<String> owners = Lists.newArrayListWithCapacity(1);
+    private double radiusSquared;
+    private final CitizensNPCRegistry registry;
+    private Sort sort = Sort.ID;
+    private final List<Class<? extends Trait>> traits = Lists.newArrayListWithCapacity(1);
+    private EntityType type;
+    private String world;
+
+    public NPCQuery(CitizensNPCRegistry registry) {
+        this.registry = registry;
+    }
+
+    private int countFilters() {
+        int filters = traits.size();
+        if (centre != null)
+            filters++;
+        if (namePrefix != null)
+            filters++;
+        if (!owners.isEmpty())
+            filters++;
+        if (type != null)
+            filters++;
+        if (world != null)
+            filters++;
+        return filters;
+    }
+
+    private int count(Iterable<NPC> candidates) {
+        int matched = 0;
+        for (NPC npc : candidates) {
+            if (matches(npc))
+                matched++;
+        }
+        return matched;
+    }
+
+    private Comparator<NPC> getComparator() {
+        switch (sort) {
+            case DISTANCE:
+                return new Comparator<NPC>() {
+                    @Override
+                    public int compare(NPC o1, NPC o2) {
+                        int diff = Double.compare(distanceSquared(o1), distanceSquared(o2));
+                        return diff != 0 ? diff : BY_ID.compare(o1, o2);
+                    }
+                };
+            case NAME:
+                return BY_NAME;
+            default:
+                return BY_ID;
+        }
+    }
+
+    private Collection<NPC> getIndexed() {
+        NPCIndex index = registry.getIndex();
+        if (!owners.isEmpty() && type != null) {
+            Collection<NPC> byOwner = getOwned(index);
+            Collection<NPC> byType = index.getByType(type);
+            return byOwner.size() <= byType.size() ? byOwner : byType;
+        }
+        if (!owners.isEmpty())
+            return getOwned(index);
+        if (type != null)
+            return index.getByType(type);
+        return null;
+    }
+
+    /**
+     * Returns the NPCs that the world and radius filters could match, if that
+     * is fewer than the indexed candidates.
+     */
+    private Collection<NPC> getLocated(Collection<NPC> indexed) {
+        if (world == null && centre == null)
+            return indexed;
+        NPCChunkIndex chunks = registry.getChunkIndex();
+        List<NPC> located = centre != null ? chunks.getNPCsNear(centre, Math.sqrt(radiusSquared)) : chunks
+                .getNPCsInWorld(world);
+        if (indexed != null && indexed.size() <= located.size())
+            return indexed;
+        // chunk buckets are not kept in ID order
+        Collections.sort(located, BY_ID);
+        return located;
+    }
+
+    private Collection<NPC> getOwned(NPCIndex index) {
+        if (owners.size() == 1)
+            return index.getByOwner(owners.get(0));
+        // kept in ID order, like the index's own sets
+        Set<NPC> owned = Sets.newTreeSet(BY_ID);
+        for (int i = 0; i < owners.size(); i++) {
+            owned.addAll(index.getByOwner(owners.get(i)));
+        }
+        return owned;
+    }
+
+    private boolean isOwner(String owner) {
+        for (int i = 0; i < owners.size(); i++) {
+            if (owners.get(i).equalsIgnoreCase(owner))
+                return true;
+        }
+        return false;
+    }
+
+    public NPCQuery inWorld(String world) {
+        this.world = world;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of NPCs to return.
+     */
+    public NPCQuery limit(int limit) {
+        Preconditions.checkArgument(limit >= 0, "limit cannot be negative");
+        this.limit = limit;
+        return this;
+    }
+
+    private boolean matches(NPC npc) {
+        if (!owners.isEmpty() && !(npc.hasTrait(Owner.class) && isOwner(npc.getTrait(Owner.class).getOwner())))
+            return false;
+        if (type != null && !(npc.hasTrait(MobType.class) && npc.getTrait(MobType.class).getType() == type))
+            return false;
+        if (namePrefix != null && !npc.getName().toLowerCase().startsWith(namePrefix))
+            return false;
+        for (int i = 0; i < traits.size(); i++) {
+            if (!npc.hasTrait(traits.get(i)))
+                return false;
+        }
+        if (world == null && centre == null)
+            return true;
+        Location location = getLocation(npc);
+        if (location == null)
+            return false;
+        if (world != null && !world.equals(location.getWorld().getName()))
+            return false;
+        return centre == null
+                || (centre.getWorld() == location.getWorld() && centre.distanceSquared(location) <= radiusSquared);
+    }
+
+    public NPCQuery nameStartsWith(String prefix) {
+        this.namePrefix = prefix.toLowerCase();
+        return this;
+    }
+
+    /**
+     * Only matches NPCs within the given distance of the centre.
+     */
+    public NPCQuery near(Location centre, double radius) {
+        this.centre = centre;
+        this.radiusSquared = radius * radius;
+        return this;
+    }
+
+    public NPCQuery ofType(EntityType type) {
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * Sets the number of matching NPCs to skip before the returned page.
+     */
+    public NPCQuery offset(int offset) {
+        Preconditions.checkArgument(offset >= 0, "offset cannot be negative");
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * Only matches NPCs whose stored owner equals one of the given names,
+     * ignoring case.
+     */
+    public NPCQuery ownedBy(String... owners) {
+        this.owners.clear();
+        this.owners.addAll(Arrays.asList(owners));
+        return this;
+    }
+
+    public Result run() {
+        Preconditions.checkState(sort != Sort.DISTANCE || centre != null, "sorting by distance needs a centre");
+        Collection<NPC> indexed = getIndexed();
+        Collection<NPC> located = getLocated(indexed);
+        Iterable<NPC> candidates = located != null ? located : registry;
+        // if nothing else is filtered, every candidate matches
+        boolean exact = located == indexed && countFilters() == (indexed != null ? 1 : 0);
+        int end = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+
+        if (sort == Sort.ID) {
+            // the registry and the candidate sets all iterate in ID order
+            List<NPC> page = Lists.newArrayList();
+            int matched = 0;
+            boolean more = false;
+            Iterator<NPC> itr = candidates.iterator();
+            while (itr.hasNext()) {
+                NPC npc = itr.next();
+                if (!exact && !matches(npc))
+                    continue;
+                if (matched >= end) {
+                    more = true;
+                    break;
+                }
+                if (matched >= offset)
+                    page.add(npc);
+                matched++;
+            }
+            int total = exact ? (located != null ? located.size() : registry.size()) : more ? -1 : matched;
+            return new Result(this, candidates, page, more, total);
+        }
+
+        Comparator<NPC> comparator = getComparator();
+        PriorityQueue<NPC> best = new PriorityQueue<NPC>(Math.max(1, Math.min(end, 64)),
+                Collections.reverseOrder(comparator));
+        int matched = 0;
+        for (NPC npc : candidates) {
+            if (!exact && !matches(npc))
+                continue;
+            matched++;
+            if (best.size() < end) {
+                best.add(npc);
+            } else if (end > 0 && comparator.compare(npc, best.peek()) < 0) {
+                best.poll();
+                best.add(npc);
+            }
+        }
+        List<NPC> sorted = Lists.newArrayList(best);
+        Collections.sort(sorted, comparator);
+        List<NPC> page = offset >= sorted.size() ? Collections.<NPC> emptyList() : sorted.subList(offset,
+                sorted.size());
+        return new Result(this, candidates, page, matched > end, matched);
+    }
+
+    public NPCQuery sortBy(Sort sort) {
+        this.sort = sort;
+        return this;
+    }
+
+    public NPCQuery withTrait(Class<? extends Trait> clazz) {
+        traits.add(clazz);
+        return this;
+    }
+
+    private double distanceSquared(NPC npc) {
+        Location location = getLocation(npc);
+        return location == null || location.getWorld() != centre.getWorld() ? Double.MAX_VALUE : location
+                .distanceSquared(centre);
+    }
+
+    public static class Result {
+        private final Iterable<NPC> candidates;
+        private final boolean more;
+        private final List<NPC> npcs;
+        private final NPCQuery query;
+        private int total;
+
+        private Result(NPCQuery query, Iterable<NPC> candidates, List<NPC> npcs, boolean more, int total) {
+            this.query = query;
+            this.candidates = candidates;
+            this.npcs = npcs;
+            this.more = more;
+            this.total = total;
+        }
+
+        /**
+         * Returns the requested page of matching NPCs.
+         */
+        public List<NPC> getNPCs() {
+            return npcs;
+        }
+
+        /**
+         * Returns the number of NPCs matching the filters, ignoring the offset
+         * and limit. Unless {@link #isTotalKnown()}, the first call reads
+         * every candidate again using the query's current filters, so a
+         * caller showing one page should use {@link #hasMore()} instead.
+         */
+        public int getTotal() {
+            if (total < 0)
+                total = query.count(candidates);
+            return total;
+        }
+
+        /**
+         * Returns whether more NPCs match after the returned page.
+         */
+        public boolean hasMore() {
+            return more;
+        }
+
+        /**
+         * Returns whether {@link #getTotal()} is already known, without
+         * reading any more candidates.
+         */
+        public boolean isTotalKnown() {
+            return total >= 0;
+        }
+    }
+
+    public enum Sort {
+        DISTANCE,
+        ID,
+        NAME;
+    }
+
+    private static final Comparator<NPC> BY_ID = new Comparator<NPC>() {
+        @Override
+        public int compare(NPC o1, NPC o2) {
+            return o1.getId() < o2.getId() ? -1 : o1.getId() == o2.getId() ? 0 : 1;
+        }
+    };
+
+    private static final Comparator<NPC> BY_NAME = new Comparator<NPC>() {
+        @Override
+        public int compare(NPC o1, NPC o2) {
+            int diff = o1.getName().compareToIgnoreCase(o2.getName());
+            return diff != 0 ? diff : BY_ID.compare(o1, o2);
+        }
+    };
+
+    /**
+     * Returns where a spawned NPC is. NPCs that aren't spawned are not in the
+     * chunk index, so they never match the world or radius filters either.
+     */
+    private static Location getLocation(NPC npc) {
+        return npc.isSpawned() ? npc.getBukkitEntity().getLocation() : null;
+    }
+}
@@ -0,0 +1,74 @@
+package net.citizensnpcs.npc;
+
+import java.util.Map;
+
+import net.citizensnpcs.util.IntList;
+import net.citizensnpcs.util.LongObjectMap;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Holds the IDs of NPCs that are waiting for a chunk to load before they can
+ * be spawned. Each world has its own bucket keyed by packed chunk
+ * coordinates, so chunk lookups do not allocate and world events only touch
+ * the bucket of that world.
+ */
+public class PendingSpawnTable {
+    private int size;
+    private final Map<String, LongObjectMap<IntList>> worlds = Maps.newHashMap();
+
+    public void add(String world, int chunkX, int chunkZ, int id) {
+        LongObjectMap<IntList> chunks = worlds.get(world);
+        if (chunks == null)
+            worlds.put(world, chunks = new LongObjectMap<IntList>());
+        long key = LongObjectMap.toChunkKey(chunkX, chunkZ);
+        IntList ids = chunks.get(key);
+        if (ids == null)
+            chunks.put(key, ids = new IntList(2));
+        else if (ids.contains(id))
+            return;
+        ids.add(id);
+        size++;
+    }
+
+    public void clear() {
+        worlds.clear();
+        size = 0;
+    }
+
+    /**
+     * @return A snapshot of the packed chunk keys with pending NPCs in the
+     *         given world
+     */
+    public long[] getChunks(String world) {
+        LongObjectMap<IntList> chunks = worlds.get(world);
+        return chunks == null ? EMPTY : chunks.keys();
+    }
+
+    /**
+     * Removes and returns the pending IDs for the given chunk, or null if
+     * there are none.
+     */
+    public IntList remove(String world, int chunkX, int chunkZ) {
+        return remove(world, LongObjectMap.toChunkKey(chunkX, chunkZ));
+    }
+
+    public IntList remove(String world, long chunkKey) {
+        LongObjectMap<IntList> chunks = worlds.get(world);
+        if (chunks == null)
+            return null;
+        IntList ids = chunks.remove(chunkKey);
+        if (ids == null)
+            return null;
+        size -= ids.size();
+        if (chunks.isEmpty())
+            worlds.remove(world);
+        return ids;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static final long[] EMPTY = new long[0];
+}
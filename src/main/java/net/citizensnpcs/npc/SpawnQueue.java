@@ -0,0 +1,125 @@
+package net.citizensnpcs.npc;
+
+import java.util.PriorityQueue;
+
+import net.citizensnpcs.Settings.Setting;
+import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.api.trait.trait.Spawned;
+import net.citizensnpcs.util.ByIdArray;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+
+/**
+ * Spreads NPC spawns over several ticks. Requests are served closest player
+ * first and each tick only spawns as many NPCs as the configured count and
+ * time budgets allow, so that loading thousands of NPCs at once does not
+ * freeze the server.
+ */
+public class SpawnQueue implements Runnable {
+    private final ByIdArray<Entry> pending = ByIdArray.create();
+    private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+    private final CitizensNPCRegistry registry;
+    private int ticks;
+
+    public SpawnQueue(CitizensNPCRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void clear() {
+        pending.clear();
+        queue.clear();
+    }
+
+    /**
+     * Queues the NPC to be spawned at the given location, replacing any
+     * earlier request for the same NPC.
+     */
+    public void enqueue(NPC npc, Location at) {
+        Entry entry = new Entry(npc.getId(), at);
+        entry.priority = getPriority(at);
+        pending.put(entry.id, entry);
+        queue.add(entry);
+    }
+
+    public boolean isQueued(int id) {
+        return pending.contains(id);
+    }
+
+    public void remove(int id) {
+        // the heap entry is skipped when it is polled
+        pending.remove(id);
+    }
+
+    private void reprioritise() {
+        queue.clear();
+        for (Entry entry : pending) {
+            entry.priority = getPriority(entry.location);
+            queue.add(entry);
+        }
+    }
+
+    @Override
+    public void run() {
+        if (queue.isEmpty())
+            return;
+        if (++ticks % REPRIORITISE_INTERVAL == 0)
+            reprioritise();
+        int maxSpawns = Setting.MAX_SPAWNS_PER_TICK.asInt();
+        long maxNanos = Setting.MAX_SPAWN_TIME_PER_TICK.asInt() * 1000000L;
+        long start = System.nanoTime();
+        int spawned = 0;
+        while (!queue.isEmpty()) {
+            if (maxSpawns > 0 && spawned >= maxSpawns)
+                break;
+            if (maxNanos > 0 && System.nanoTime() - start >= maxNanos)
+                break;
+            Entry entry = queue.poll();
+            if (pending.get(entry.id) != entry)
+                continue;
+            pending.remove(entry.id);
+            NPC npc = registry.getById(entry.id);
+            if (npc == null || npc.isSpawned() || !npc.getTrait(Spawned.class).shouldSpawn())
+                continue;
+            npc.spawn(entry.location);
+            spawned++;
+        }
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        private final int id;
+        private final Location location;
+        private double priority;
+
+        private Entry(int id, Location location) {
+            this.id = id;
+            this.location = location;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return Double.compare(priority, o.priority);
+        }
+    }
+
+    /**
+     * Returns the squared distance to the nearest player in the same world,
+     * lower values being spawned first.
+     */
+    private static double getPriority(Location at) {
+        double nearest = Double.MAX_VALUE;
+        if (at.getWorld() == null)
+            return nearest;
+        for (Player player : at.getWorld().getPlayers()) {
+            nearest = Math.min(nearest, player.getLocation(PLAYER_LOCATION).distanceSquared(at));
+        }
+        return nearest;
+    }
+
+    private static final Location PLAYER_LOCATION = new Location(null, 0, 0, 0);
+    private static final int REPRIORITISE_INTERVAL = 100;
+}
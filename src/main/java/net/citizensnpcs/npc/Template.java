@@ -7,59 +7,125 @@ import java.util.Map.Entry;
 
 import net.citizensnpcs.api.CitizensAPI;
 import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.api.trait.Trait;
 import net.citizensnpcs.api.util.DataKey;
 import net.citizensnpcs.api.util.MemoryDataKey;
 import net.citizensnpcs.api.util.YamlStorage;
 import net.citizensnpcs.api.util.YamlStorage.YamlKey;
 
+import org.bukkit.configuration.ConfigurationSection;
+
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 public class Template {
     private final String name;
+    private final List<Operation> ownOperations = Lists.newArrayList();
     private final boolean override;
-    private final Map<String, Object> replacements;
+    private final Map<String, List<Operation>> traitOperations = Maps.newLinkedHashMap();
 
     private Template(String name, Map<String, Object> replacements, boolean override) {
-        this.replacements = replacements;
         this.override = override;
         this.name = name;
+        compile(replacements, new StringBuilder());
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Applies the template's values to the live NPC. Only the traits named by
+     * the template are saved, changed and loaded again; the NPC is not
+     * reloaded or respawned.
+     */
     public void apply(NPC npc) {
-        MemoryDataKey memoryKey = new MemoryDataKey();
-        ((CitizensNPC) npc).save(memoryKey);
-        List<Node> queue = Lists.newArrayList(new Node("", replacements));
-        for (int i = 0; i < queue.size(); i++) {
-            Node node = queue.get(i);
-            for (Entry<String, Object> entry : node.map.entrySet()) {
-                String fullKey = node.headKey + '.' + entry.getKey();
-                if (entry.getValue() instanceof Map<?, ?>) {
-                    queue.add(new Node(fullKey, (Map<String, Object>) entry.getValue()));
-                    continue;
-                }
-                boolean overwrite = memoryKey.keyExists(fullKey) | override;
-                if (!overwrite)
-                    continue;
-                memoryKey.setRaw(fullKey, entry.getValue());
+        CitizensNPC citizensNPC = (CitizensNPC) npc;
+        if (!ownOperations.isEmpty()) {
+            MemoryDataKey own = new MemoryDataKey();
+            citizensNPC.saveOwnData(own);
+            if (applyTo(own, ownOperations))
+                citizensNPC.loadOwnData(own);
+        }
+        for (Entry<String, List<Operation>> entry : traitOperations.entrySet()) {
+            Class<? extends Trait> clazz = CitizensAPI.getTraitFactory().getTraitClass(entry.getKey());
+            if (clazz == null)
+                continue;
+            boolean present = npc.hasTrait(clazz);
+            // without override, values are only replaced, so missing traits are left missing
+            if (!present && !override)
+                continue;
+            Trait trait = npc.getTrait(clazz);
+            // traits may store values on their own key, so use a child key
+            DataKey traitKey = new MemoryDataKey().getRelative("trait");
+            if (present)
+                citizensNPC.saveTrait(trait, traitKey);
+            if (!applyTo(traitKey, entry.getValue()))
+                continue;
+            citizensNPC.loadTrait(trait, traitKey);
+            citizensNPC.markDirty(trait);
+        }
+    }
+
+    /**
+     * Sets each value that already exists in the key, or every value if the
+     * template overrides. Returns whether anything was set.
+     */
+    private boolean applyTo(DataKey key, List<Operation> operations) {
+        boolean changed = false;
+        for (Operation operation : operations) {
+            if (!override && !exists(key, operation.path))
+                continue;
+            key.setRaw(operation.path, operation.value);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Flattens the replacement tree into a list of operations per trait,
+     * keyed relative to the trait, and a list for the NPC's own data.
+     */
+    @SuppressWarnings("unchecked")
+    private void compile(Map<String, Object> replacements, StringBuilder path) {
+        int length = path.length();
+        for (Entry<String, Object> entry : replacements.entrySet()) {
+            if (length > 0)
+                path.append('.');
+            path.append(entry.getKey());
+            if (entry.getValue() instanceof Map<?, ?>) {
+                compile((Map<String, Object>) entry.getValue(), path);
+            } else if (!(entry.getValue() instanceof ConfigurationSection)) {
+                // deep value maps also list each section, ahead of its values
+                addOperation(path.toString(), entry.getValue());
             }
+            path.setLength(length);
+        }
+    }
+
+    private void addOperation(String fullPath, Object value) {
+        if (fullPath.equals("traitnames"))
+            return; // the trait list follows from the traits that are applied
+        if (!fullPath.startsWith("traits.")) {
+            ownOperations.add(new Operation(fullPath, value));
+            return;
         }
-        ((CitizensNPC) npc).load(memoryKey);
+        int end = fullPath.indexOf('.', TRAITS_PREFIX_LENGTH);
+        String trait = end == -1 ? fullPath.substring(TRAITS_PREFIX_LENGTH) : fullPath.substring(
+                TRAITS_PREFIX_LENGTH, end);
+        List<Operation> operations = traitOperations.get(trait);
+        if (operations == null)
+            traitOperations.put(trait, operations = Lists.newArrayList());
+        operations.add(new Operation(end == -1 ? "" : fullPath.substring(end + 1), value));
     }
 
     public String getName() {
         return name;
     }
 
-    private static class Node {
-        String headKey;
+    private static class Operation {
+        private final String path;
+        private final Object value;
 
-        Map<String, Object> map;
-
-        private Node(String headKey, Map<String, Object> map) {
-            this.headKey = headKey;
-            this.map = map;
+        private Operation(String path, Object value) {
+            this.path = path;
+            this.value = value;
         }
     }
 
@@ -74,7 +140,9 @@ public class Template {
 
         public Template buildAndSave() {
             save();
-            return new Template(name, replacements, override);
+            Template template = new Template(name, replacements, override);
+            cache.put(name, template);
+            return template;
         }
 
         public TemplateBuilder from(NPC npc) {
@@ -95,6 +163,7 @@ public class Template {
             root.setBoolean("override", override);
             root.setRaw("replacements", replacements);
             templates.save();
+            cache.remove(name);
         }
 
         public static TemplateBuilder create(String name) {
@@ -102,18 +171,33 @@ public class Template {
         }
     }
 
+    private static final Map<String, Template> cache = Maps.newHashMap();
     private static YamlStorage templates = new YamlStorage(new File(CitizensAPI.getDataFolder(),
             "templates.yml"));
 
+    /**
+     * Returns the named template, compiling it the first time it is used.
+     */
     public static Template byName(String name) {
+        Template template = cache.get(name);
+        if (template != null)
+            return template;
         if (!templates.getKey("").keyExists(name))
             return null;
         YamlKey key = templates.getKey(name);
         boolean override = key.getBoolean("override", false);
         Map<String, Object> replacements = key.getRelative("replacements").getValuesDeep();
-        return new Template(name, replacements, override);
+        template = new Template(name, replacements, override);
+        cache.put(name, template);
+        return template;
+    }
+
+    private static boolean exists(DataKey key, String path) {
+        return path.isEmpty() ? key.getRaw("") != null : key.keyExists(path);
     }
 
+    private static final int TRAITS_PREFIX_LENGTH = "traits.".length();
+
     static {
         templates.load();
     }
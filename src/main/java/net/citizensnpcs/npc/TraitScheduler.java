@@ -0,0 +1,44 @@
+package net.citizensnpcs.npc;
+
+import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.trait.ScheduledTrait;
+
+/**
+ * Counts server ticks and decides which of them periodic NPC work runs on.
+ * Within an interval each NPC is offset by its ID, so that NPCs doing the
+ * same work are spread evenly over the interval rather than all doing it on
+ * the same tick.
+ *
+ * A {@link ScheduledTrait} is counted in its NPC's trait updates rather than
+ * server ticks, so that it keeps its place in the NPC's schedule when the NPC
+ * is running its traits less often.
+ */
+public class TraitScheduler implements Runnable {
+    private int currentTick;
+
+    /**
+     * Returns whether an NPC doing something every <code>interval</code>
+     * ticks should do it on this tick.
+     */
+    public boolean isDue(NPC npc, int interval) {
+        return interval <= 1 || isDue(currentTick, npc.getId(), interval);
+    }
+
+    public boolean isDue(NPC npc, ScheduledTrait trait) {
+        int interval = trait.getTickInterval();
+        if (interval <= 1)
+            return true;
+        int ticks = npc instanceof CitizensNPC ? ((CitizensNPC) npc).getTraitTicks() : currentTick;
+        return isDue(ticks, npc.getId() + trait.getTickPhase(), interval);
+    }
+
+    @Override
+    public void run() {
+        // kept positive so that the modulus in isDue is never negative
+        currentTick = (currentTick + 1) & Integer.MAX_VALUE;
+    }
+
+    private static boolean isDue(int ticks, int offset, int interval) {
+        return ((long) ticks + offset) % interval == 0;
+    }
+}
@@ -1,25 +1,56 @@
 package net.citizensnpcs.npc.ai;
 
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.citizensnpcs.Settings.Setting;
 import net.citizensnpcs.api.ai.NavigatorParameters;
 import net.citizensnpcs.api.ai.TargetType;
 import net.citizensnpcs.api.ai.event.CancelReason;
 import net.citizensnpcs.api.astar.AStarMachine;
+import net.citizensnpcs.api.astar.pathfinder.BlockExaminer;
+import net.citizensnpcs.api.astar.pathfinder.BlockSource;
 import net.citizensnpcs.api.astar.pathfinder.ChunkBlockSource;
 import net.citizensnpcs.api.astar.pathfinder.Path;
 import net.citizensnpcs.api.astar.pathfinder.VectorGoal;
 import net.citizensnpcs.api.astar.pathfinder.VectorNode;
 import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.npc.ai.PathInvalidationIndex.PathObserver;
 import net.citizensnpcs.util.NMS;
 
 import org.bukkit.Effect;
 import org.bukkit.Location;
 import org.bukkit.util.Vector;
 
-public class AStarNavigationStrategy extends AbstractPathStrategy {
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Navigates along a path found by A*. By default the search runs on a worker
+ * thread against a {@link SnapshotBlockSource} taken when navigation starts.
+ * In the <code>incremental</code> search mode it runs on the main thread
+ * instead, a slice per tick, through the {@link IncrementalPathPlanner}. The
+ * NPC waits where it is until the path arrives, and a path arriving after the
+ * strategy has been stopped or replaced is dropped. Found paths are kept in the
+ * navigator's {@link PathCache} and reused for the same leg. If a block along
+ * the path being followed changes, a new path is searched for from where the
+ * NPC is.
+ */
+public class AStarNavigationStrategy extends AbstractPathStrategy implements PathObserver {
     private final Location destination;
+    private int index;
+    private PathCache.Key key;
     private final NPC npc;
     private final NavigatorParameters params;
-    private Path plan;
+    private Vector[] plan;
+    private Future<Path> planning;
+    private boolean replan;
     private Vector vector;
 
     AStarNavigationStrategy(NPC npc, Location dest, NavigatorParameters params) {
@@ -27,14 +58,7 @@ public class AStarNavigationStrategy extends AbstractPathStrategy {
         this.params = params;
         this.destination = dest;
         this.npc = npc;
-        Location location = npc.getBukkitEntity().getEyeLocation();
-        plan = ASTAR.runFully(new VectorGoal(dest), new VectorNode(location, new ChunkBlockSource(location,
-                params.range()), params.examiners()), (int) (params.range() * 10));
-        if (plan == null || plan.isComplete()) {
-            setCancelReason(CancelReason.STUCK);
-        } else {
-            vector = plan.getCurrentVector();
-        }
+        plan();
     }
 
     @Override
@@ -42,21 +66,123 @@ public class AStarNavigationStrategy extends AbstractPathStrategy {
         return destination;
     }
 
+    /**
+     * Returns whether the path is still being searched for.
+     */
+    public boolean isPlanning() {
+        return planning != null;
+    }
+
+    @Override
+    public void onPathInvalidated() {
+        // re-planned on the next update rather than inside the block event
+        replan = true;
+    }
+
+    /**
+     * Starts following a path from the NPC's current location, taken from the
+     * cache or searched for.
+     */
+    private void plan() {
+        stop();
+        index = 0;
+        final Location location = npc.getBukkitEntity().getEyeLocation();
+        key = new PathCache.Key(true, location, destination, params);
+        plan = CitizensNavigator.getPathCache().get(key);
+        if (plan != null) {
+            CitizensNavigator.getPathInvalidationIndex().register(key.getWorld(), plan, this);
+            vector = plan[0];
+            return;
+        }
+        final VectorGoal goal = new VectorGoal(destination);
+        final BlockExaminer[] examiners = params.examiners();
+        final int iterations = (int) (params.range() * 10);
+        if (Setting.PATHFINDING_SEARCH_MODE.asString().equalsIgnoreCase("incremental")) {
+            planning = INCREMENTAL_PLANNER.submit(ASTAR, goal, new VectorNode(location, new ChunkBlockSource(
+                    location, params.range()), examiners), iterations);
+            return;
+        }
+        final BlockSource source = new SnapshotBlockSource(location, destination, params.range());
+        planning = PLANNER.submit(new Callable<Path>() {
+            @Override
+            public Path call() {
+                // each worker search has its own machine, as nothing says that
+                // a machine can be used by several threads at once
+                AStarMachine machine = AStarMachine.createWithDefaultStorage();
+                return machine.runFully(goal, new VectorNode(location, source, examiners), iterations);
+            }
+        });
+    }
+
+    /**
+     * Takes the finished search result, if there is one yet.
+     */
+    private void receivePlan() {
+        if (!planning.isDone())
+            return;
+        Path path = null;
+        try {
+            path = planning.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+        planning = null;
+        if (path == null || path.isComplete()) {
+            setCancelReason(CancelReason.STUCK);
+            return;
+        }
+        plan = toPoints(path);
+        CitizensNavigator.getPathCache().put(key, plan);
+        CitizensNavigator.getPathInvalidationIndex().register(key.getWorld(), plan, this);
+        vector = plan[0];
+    }
+
     @Override
     public void stop() {
+        if (planning != null) {
+            planning.cancel(true);
+            planning = null;
+        }
+        CitizensNavigator.getPathInvalidationIndex().unregister(this);
         plan = null;
     }
 
+    /**
+     * Walks the found path to copy out its points, so that it can be cached.
+     */
+    private Vector[] toPoints(Path path) {
+        List<Vector> points = Lists.newArrayList();
+        while (!path.isComplete()) {
+            points.add(path.getCurrentVector());
+            path.update(npc);
+        }
+        return points.toArray(new Vector[points.size()]);
+    }
+
     @Override
     public boolean update() {
-        if (getCancelReason() != null || plan == null || plan.isComplete())
+        if (getCancelReason() != null)
+            return true;
+        if (replan) {
+            replan = false;
+            plan();
+        }
+        if (planning != null) {
+            receivePlan();
+            if (planning != null)
+                return false;
+            if (getCancelReason() != null)
+                return true;
+        }
+        if (plan == null || index >= plan.length)
             return true;
         if (npc.getBukkitEntity().getLocation(NPC_LOCATION).toVector().distanceSquared(vector) <= params
                 .distanceMargin()) {
-            plan.update(npc);
-            if (plan.isComplete())
+            if (++index >= plan.length)
                 return true;
-            vector = plan.getCurrentVector();
+            vector = plan[index];
             npc.getBukkitEntity()
                     .getWorld()
                     .playEffect(vector.toLocation(npc.getBukkitEntity().getWorld()), Effect.STEP_SOUND,
@@ -66,6 +192,27 @@ public class AStarNavigationStrategy extends AbstractPathStrategy {
         return false;
     }
 
+    // only used by the incremental planner, on the main thread
     private static final AStarMachine ASTAR = AStarMachine.createWithDefaultStorage();
+    private static final IncrementalPathPlanner INCREMENTAL_PLANNER = new IncrementalPathPlanner();
     private static final Location NPC_LOCATION = new Location(null, 0, 0, 0);
-}
\ No newline at end of file
+    private static final ExecutorService PLANNER;
+
+    static {
+        int threads = Math.max(1, Setting.PATHFINDING_THREADS.asInt());
+        ThreadPoolExecutor planner = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("Citizens Pathfinder %d").build());
+        // idle threads exit, so a plugin reload doesn't leave them behind
+        planner.allowCoreThreadTimeOut(true);
+        PLANNER = planner;
+    }
+
+    /**
+     * Returns the planner running searches in the <code>incremental</code>
+     * search mode. It must be run once per tick.
+     */
+    public static IncrementalPathPlanner getIncrementalPlanner() {
+        return INCREMENTAL_PLANNER;
+    }
+}
@@ -1,5 +1,7 @@
 package net.citizensnpcs.npc.ai;
 
+import java.util.Arrays;
+
 import net.citizensnpcs.Settings.Setting;
 import net.citizensnpcs.api.ai.EntityTarget;
 import net.citizensnpcs.api.ai.Navigator;
@@ -15,10 +17,13 @@ import net.citizensnpcs.api.ai.event.NavigationReplaceEvent;
 import net.citizensnpcs.api.astar.pathfinder.MinecraftBlockExaminer;
 import net.citizensnpcs.api.npc.NPC;
 import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.npc.ai.PathInvalidationIndex.PathObserver;
 import net.citizensnpcs.util.NMS;
+import net.citizensnpcs.util.Util;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.util.Vector;
 
@@ -31,6 +36,7 @@ public class CitizensNavigator implements Navigator, Runnable {
     private int lastX, lastY, lastZ;
     private NavigatorParameters localParams = defaultParams;
     private final NPC npc;
+    private double[] savedState;
 
     private int stationaryTicks;
 
@@ -38,11 +44,87 @@ public class CitizensNavigator implements Navigator, Runnable {
         this.npc = npc;
     }
 
+    /**
+     * Moves an NPC navigating to a location straight towards it, by about the
+     * distance it would have walked in the given number of ticks, without
+     * pathfinding or running its AI. Used for NPCs that no player is near, so
+     * that their routes still progress. Navigation completes as normal once
+     * the target is reached.
+     *
+     * Each step is moved up or down to the nearest block the NPC can stand
+     * in, and the NPC waits where it is if there is none. The strategy's path
+     * no longer starts where the NPC is, so a new one is found once the NPC
+     * is active again.
+     */
+    public void advanceWhileFrozen(int ticks) {
+        if (!isNavigating() || executing.getTargetType() != TargetType.LOCATION)
+            return;
+        if (!npc.isSpawned()) {
+            stopNavigating(CancelReason.NPC_DESPAWNED);
+            return;
+        }
+        Location current = npc.getBukkitEntity().getLocation();
+        Location target = executing.getTargetAsLocation();
+        if (target.getWorld() != current.getWorld())
+            return;
+        double distance = current.distance(target);
+        double step = localParams.speed() * FROZEN_BLOCKS_PER_SPEED * ticks;
+        if (distance <= step) {
+            target = target.clone();
+            target.setYaw(current.getYaw());
+            target.setPitch(current.getPitch());
+            if (Util.isLoaded(target)) {
+                npc.getBukkitEntity().teleport(target);
+                complete();
+            }
+            return;
+        }
+        Vector direction = target.toVector().subtract(current.toVector()).multiply(step / distance);
+        current.add(direction);
+        // wait at the edge of loaded chunks rather than leave them
+        if (!Util.isLoaded(current) || !findStandingBlock(current))
+            return;
+        npc.getBukkitEntity().teleport(current);
+        if (executing instanceof PathObserver)
+            ((PathObserver) executing).onPathInvalidated();
+    }
+
     @Override
     public void cancelNavigation() {
         stopNavigating(CancelReason.PLUGIN);
     }
 
+    private void complete() {
+        NavigationCompleteEvent event = new NavigationCompleteEvent(this);
+        PathStrategy old = executing;
+        Bukkit.getPluginManager().callEvent(event);
+        if (old == executing)
+            stopNavigating();
+    }
+
+    /**
+     * Moves the location to the nearest height within a few blocks where an
+     * NPC can stand, on a solid block with room for its feet and head.
+     * Returns false if there is none.
+     */
+    private static boolean findStandingBlock(Location location) {
+        World world = location.getWorld();
+        int x = location.getBlockX(), y = location.getBlockY(), z = location.getBlockZ();
+        for (int i = 0; i <= FROZEN_MAX_STEP_HEIGHT * 2; i++) {
+            // 0, 1, -1, 2, -2...
+            int feet = y + ((i & 1) == 1 ? (i + 1) / 2 : -i / 2);
+            if (feet < 1 || feet + 1 >= world.getMaxHeight())
+                continue;
+            if (world.getBlockAt(x, feet - 1, z).getType().isSolid()
+                    && !world.getBlockAt(x, feet, z).getType().isSolid()
+                    && !world.getBlockAt(x, feet + 1, z).getType().isSolid()) {
+                location.setY(feet);
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public NavigatorParameters getDefaultParameters() {
         return defaultParams;
@@ -60,6 +142,12 @@ public class CitizensNavigator implements Navigator, Runnable {
         return localParams;
     }
 
+    private double[] getSaveState() {
+        return new double[] { defaultParams.baseSpeed(), defaultParams.range(), defaultParams.stationaryTicks(),
+                defaultParams.speedModifier(), defaultParams.avoidWater() ? 1 : 0,
+                defaultParams.stuckAction() == TeleportStuckAction.INSTANCE ? 1 : 0 };
+    }
+
     @Override
     public NPC getNPC() {
         return npc;
@@ -75,6 +163,14 @@ public class CitizensNavigator implements Navigator, Runnable {
         return isNavigating() ? executing.getTargetType() : null;
     }
 
+    /**
+     * Returns whether the saved default parameters have changed since the
+     * last call to {@link #markClean()}.
+     */
+    public boolean isDirty() {
+        return !Arrays.equals(savedState, getSaveState());
+    }
+
     @Override
     public boolean isNavigating() {
         return executing != null;
@@ -94,6 +190,10 @@ public class CitizensNavigator implements Navigator, Runnable {
             defaultParams.stuckAction(null);
     }
 
+    public void markClean() {
+        savedState = getSaveState();
+    }
+
     public void onSpawn() {
         if (defaultParams.baseSpeed() == UNINITIALISED_SPEED)
             defaultParams.baseSpeed(NMS.getSpeedFor(npc));
@@ -116,13 +216,8 @@ public class CitizensNavigator implements Navigator, Runnable {
             return;
         if (executing.getCancelReason() != null) {
             stopNavigating(executing.getCancelReason());
-        } else {
-            NavigationCompleteEvent event = new NavigationCompleteEvent(this);
-            PathStrategy old = executing;
-            Bukkit.getPluginManager().callEvent(event);
-            if (old == executing)
-                stopNavigating();
-        }
+        } else
+            complete();
     }
 
     public void save(DataKey root) {
@@ -142,6 +237,7 @@ public class CitizensNavigator implements Navigator, Runnable {
             cancelNavigation();
             return;
         }
+        stopExecuting();
         localParams = defaultParams.clone();
         PathStrategy newStrategy = new MCTargetStrategy(npc, target, aggressive, localParams);
         switchStrategyTo(newStrategy);
@@ -155,6 +251,7 @@ public class CitizensNavigator implements Navigator, Runnable {
             cancelNavigation();
             return;
         }
+        stopExecuting();
         localParams = defaultParams.clone();
         PathStrategy newStrategy;
         if (Setting.USE_NEW_PATHFINDER.asBoolean())
@@ -164,6 +261,15 @@ public class CitizensNavigator implements Navigator, Runnable {
         switchStrategyTo(newStrategy);
     }
 
+    /**
+     * Stops the strategy about to be replaced, before the new one is created
+     * and sets its own path on the NPC's navigation.
+     */
+    private void stopExecuting() {
+        if (executing != null)
+            executing.stop();
+    }
+
     private void stopNavigating() {
         if (executing != null)
             executing.stop();
@@ -225,7 +331,27 @@ public class CitizensNavigator implements Navigator, Runnable {
         return false;
     }
 
+    private static final double FROZEN_BLOCKS_PER_SPEED = 0.5;
+    private static final int FROZEN_MAX_STEP_HEIGHT = 3;
+    private static final PathInvalidationIndex PATH_INDEX = new PathInvalidationIndex();
+    private static final PathCache PATH_CACHE = new PathCache(PATH_INDEX);
     private static final Location STATIONARY_LOCATION = new Location(null, 0, 0, 0);
 
     private static int UNINITIALISED_SPEED = Integer.MIN_VALUE;
+
+    /**
+     * Returns the cache of paths shared by every navigator's location
+     * strategies.
+     */
+    public static PathCache getPathCache() {
+        return PATH_CACHE;
+    }
+
+    /**
+     * Returns the index of cached and followed paths, which must be registered
+     * as a listener to see block changes.
+     */
+    public static PathInvalidationIndex getPathInvalidationIndex() {
+        return PATH_INDEX;
+    }
 }
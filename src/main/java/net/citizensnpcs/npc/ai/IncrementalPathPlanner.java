@@ -0,0 +1,144 @@
+package net.citizensnpcs.npc.ai;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.citizensnpcs.Settings.Setting;
+import net.citizensnpcs.api.astar.AStarGoal;
+import net.citizensnpcs.api.astar.AStarMachine;
+import net.citizensnpcs.api.astar.AStarMachine.AStarState;
+import net.citizensnpcs.api.astar.AStarNode;
+import net.citizensnpcs.api.astar.pathfinder.Path;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AbstractFuture;
+
+/**
+ * Runs A* searches on the main thread a slice at a time, keeping each
+ * search's open set between ticks. Every tick the searches share a global
+ * budget of node expansions, each getting an equal share of at most the
+ * per-NPC limit. Searches that the budget did not reach on one tick go first
+ * on the next. A search ends once it finds a path, runs out of nodes to
+ * expand or uses up its iterations.
+ */
+public class IncrementalPathPlanner implements Runnable {
+    private int currentTick;
+    private int cursor;
+    private final AtomicLong expansions = new AtomicLong();
+    private final List<Search> searches = Lists.newArrayList();
+    private final AtomicLong searchingTicks = new AtomicLong();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong waitedTicks = new AtomicLong();
+
+    /**
+     * Returns the average number of nodes expanded per tick, over the ticks
+     * with searches waiting since the statistics were last reset.
+     */
+    public int getAverageExpansionsPerTick() {
+        long ticks = searchingTicks.get();
+        return ticks == 0 ? 0 : (int) (expansions.get() / ticks);
+    }
+
+    /**
+     * Returns the average time in milliseconds between a search being
+     * submitted and its first slice running, since the statistics were last
+     * reset.
+     */
+    public int getAverageQueueWait() {
+        long count = started.get();
+        return count == 0 ? 0 : (int) (waitedTicks.get() * MILLISECONDS_PER_TICK / count);
+    }
+
+    public void resetStatistics() {
+        expansions.set(0);
+        searchingTicks.set(0);
+        started.set(0);
+        waitedTicks.set(0);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run() {
+        currentTick++;
+        Iterator<Search> itr = searches.iterator();
+        while (itr.hasNext()) {
+            if (itr.next().isDone())
+                itr.remove();
+        }
+        int size = searches.size();
+        if (size == 0)
+            return;
+        int budget = Setting.PATHFINDING_ITERATIONS_PER_TICK.asInt();
+        int share = Math.max(1, Math.min(Setting.PATHFINDING_ITERATIONS_PER_NPC.asInt(), budget / size));
+        if (cursor >= size)
+            cursor = 0;
+        int expanded = 0, served = 0;
+        while (served < size && expanded < budget) {
+            Search search = searches.get((cursor + served) % size);
+            served++;
+            if (search.firstTick < 0) {
+                search.firstTick = currentTick;
+                started.incrementAndGet();
+                waitedTicks.addAndGet(currentTick - search.submittedTick);
+            }
+            int slice = Math.min(search.remaining, Math.min(share, budget - expanded));
+            // run in steps so that a search ending early gives back the rest
+            // of its slice and is not counted as having used it
+            Path path = null;
+            int used = 0;
+            boolean exhausted = false;
+            while (used < slice) {
+                int step = Math.min(STEP_SIZE, slice - used);
+                path = (Path) search.machine.run(search.state, step);
+                used += step;
+                exhausted = search.state.isEmpty();
+                if (path != null || exhausted)
+                    break;
+            }
+            search.remaining -= used;
+            expanded += used;
+            if (path != null || exhausted || search.remaining <= 0)
+                search.finish(path);
+        }
+        cursor = (cursor + served) % size;
+        expansions.addAndGet(expanded);
+        searchingTicks.incrementAndGet();
+    }
+
+    /**
+     * Queues a search from <code>start</code> to <code>goal</code>, giving up
+     * after <code>maxIterations</code> expansions. Must be called on the main
+     * thread. The returned future completes with the path found, or null if
+     * there is none, and can be cancelled to drop the search.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public Search submit(AStarMachine machine, AStarGoal goal, AStarNode start, int maxIterations) {
+        Search search = new Search(machine, machine.getStateFor(goal, start), maxIterations, currentTick);
+        searches.add(search);
+        return search;
+    }
+
+    @SuppressWarnings("rawtypes")
+    public static class Search extends AbstractFuture<Path> {
+        private int firstTick = -1;
+        private final AStarMachine machine;
+        private int remaining;
+        private final AStarState state;
+        private final int submittedTick;
+
+        private Search(AStarMachine machine, AStarState state, int maxIterations, int submittedTick) {
+            this.machine = machine;
+            this.state = state;
+            this.remaining = maxIterations;
+            this.submittedTick = submittedTick;
+        }
+
+        private void finish(Path path) {
+            set(path);
+        }
+    }
+
+    private static final int MILLISECONDS_PER_TICK = 50;
+    private static final int STEP_SIZE = 16;
+}
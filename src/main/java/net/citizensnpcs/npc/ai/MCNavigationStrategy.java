@@ -4,22 +4,34 @@ import net.citizensnpcs.api.ai.NavigatorParameters;
 import net.citizensnpcs.api.ai.TargetType;
 import net.citizensnpcs.api.ai.event.CancelReason;
 import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.npc.ai.PathInvalidationIndex.PathObserver;
 import net.minecraft.server.v1_4_5.EntityHuman;
 import net.minecraft.server.v1_4_5.EntityLiving;
 import net.minecraft.server.v1_4_5.Navigation;
+import net.minecraft.server.v1_4_5.PathEntity;
+import net.minecraft.server.v1_4_5.PathPoint;
 
 import org.bukkit.Location;
 import org.bukkit.craftbukkit.v1_4_5.entity.CraftLivingEntity;
+import org.bukkit.util.Vector;
 
-public class MCNavigationStrategy extends AbstractPathStrategy {
+/**
+ * Navigates using Minecraft's own pathfinding. Found paths are kept in the
+ * navigator's {@link PathCache}, and a new path is found from where the NPC
+ * is if a block along the current one changes.
+ */
+public class MCNavigationStrategy extends AbstractPathStrategy implements PathObserver {
     private final Navigation navigation;
+    private final NPC npc;
     private final NavigatorParameters parameters;
+    private boolean replan;
     private final Location target;
 
     MCNavigationStrategy(final NPC npc, Location dest, NavigatorParameters params) {
         super(TargetType.LOCATION);
         this.target = dest;
         this.parameters = params;
+        this.npc = npc;
         EntityLiving handle = ((CraftLivingEntity) npc.getBukkitEntity()).getHandle();
         if (handle instanceof EntityHuman) {
             handle.onGround = true;
@@ -28,10 +40,7 @@ public class MCNavigationStrategy extends AbstractPathStrategy {
             // entirely fix the problem.
         }
         navigation = handle.getNavigation();
-        navigation.a(parameters.avoidWater());
-        navigation.a(dest.getX(), dest.getY(), dest.getZ(), parameters.speed());
-        if (navigation.f())
-            setCancelReason(CancelReason.STUCK);
+        plan();
     }
 
     @Override
@@ -44,8 +53,41 @@ public class MCNavigationStrategy extends AbstractPathStrategy {
         return TargetType.LOCATION;
     }
 
+    @Override
+    public void onPathInvalidated() {
+        // re-planned on the next update rather than inside the block event
+        replan = true;
+    }
+
+    /**
+     * Sets the navigation's path from the NPC's current location, taken from
+     * the cache or found by Minecraft.
+     */
+    private void plan() {
+        navigation.a(parameters.avoidWater());
+        PathCache cache = CitizensNavigator.getPathCache();
+        PathCache.Key key = new PathCache.Key(false, npc.getBukkitEntity().getLocation(), target, parameters);
+        Vector[] points = cache.get(key);
+        PathEntity path;
+        if (points != null) {
+            path = toEntity(points);
+        } else {
+            path = navigation.a(target.getX(), target.getY(), target.getZ());
+            if (path != null) {
+                points = toPoints(path);
+                cache.put(key, points);
+            }
+        }
+        navigation.a(path, parameters.speed());
+        if (navigation.f()) {
+            setCancelReason(CancelReason.STUCK);
+        } else
+            CitizensNavigator.getPathInvalidationIndex().register(key.getWorld(), points, this);
+    }
+
     @Override
     public void stop() {
+        CitizensNavigator.getPathInvalidationIndex().unregister(this);
         navigation.g();
     }
 
@@ -53,8 +95,31 @@ public class MCNavigationStrategy extends AbstractPathStrategy {
     public boolean update() {
         if (getCancelReason() != null)
             return true;
+        if (replan) {
+            replan = false;
+            plan();
+            if (getCancelReason() != null)
+                return true;
+        }
         navigation.a(parameters.avoidWater());
         navigation.a(parameters.speed());
         return navigation.f();
     }
+
+    private static PathEntity toEntity(Vector[] points) {
+        PathPoint[] path = new PathPoint[points.length];
+        for (int i = 0; i < points.length; i++) {
+            path[i] = new PathPoint(points[i].getBlockX(), points[i].getBlockY(), points[i].getBlockZ());
+        }
+        return new PathEntity(path);
+    }
+
+    private static Vector[] toPoints(PathEntity path) {
+        Vector[] points = new Vector[path.d()];
+        for (int i = 0; i < points.length; i++) {
+            PathPoint point = path.a(i);
+            points[i] = new Vector(point.a, point.b, point.c);
+        }
+        return points;
+    }
 }
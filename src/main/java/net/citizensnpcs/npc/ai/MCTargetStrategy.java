@@ -1,5 +1,6 @@
 package net.citizensnpcs.npc.ai;
 
+import net.citizensnpcs.Settings.Setting;
 import net.citizensnpcs.api.ai.AttackStrategy;
 import net.citizensnpcs.api.ai.EntityTarget;
 import net.citizensnpcs.api.ai.NavigatorParameters;
@@ -16,13 +17,27 @@ import org.bukkit.Location;
 import org.bukkit.craftbukkit.v1_4_5.entity.CraftLivingEntity;
 import org.bukkit.entity.LivingEntity;
 
+/**
+ * Follows, and optionally attacks, a moving entity using Minecraft's own
+ * pathfinding. Rather than finding a new path every tick, the path is only
+ * found again once the target has moved far enough from where it was when
+ * the last path was found, the NPC has reached the end of the path, or the
+ * configured maximum interval has passed. Line of sight to the target is
+ * likewise only checked every few ticks.
+ */
 public class MCTargetStrategy implements PathStrategy, EntityTarget {
     private final boolean aggro;
     private int attackTicks;
     private CancelReason cancelReason;
+    private int failedRepaths;
     private final EntityLiving handle, target;
+    private boolean lineOfSight;
+    private int lineOfSightTicks;
     private final Navigation navigation;
     private final NavigatorParameters parameters;
+    private int repathTicks;
+    private double targetX, targetY, targetZ;
+    private int ticksSinceRepath;
 
     public MCTargetStrategy(NPC handle, LivingEntity target, boolean aggro, NavigatorParameters params) {
         this.handle = ((CraftLivingEntity) handle.getBukkitEntity()).getHandle();
@@ -69,7 +84,11 @@ public class MCTargetStrategy implements PathStrategy, EntityTarget {
     }
 
     private boolean hasLineOfSight() {
-        return ((LivingEntity) handle.getBukkitEntity()).hasLineOfSight(target.getBukkitEntity());
+        if (lineOfSightTicks <= 0) {
+            lineOfSight = ((LivingEntity) handle.getBukkitEntity()).hasLineOfSight(target.getBukkitEntity());
+            lineOfSightTicks = Setting.LINE_OF_SIGHT_CACHE_TICKS.asInt();
+        }
+        return lineOfSight;
     }
 
     @Override
@@ -77,6 +96,19 @@ public class MCTargetStrategy implements PathStrategy, EntityTarget {
         return aggro;
     }
 
+    private boolean shouldRepath() {
+        if (repathTicks <= 0)
+            return true;
+        double dx = target.locX - targetX, dy = target.locY - targetY, dz = target.locZ - targetZ;
+        double distance = Setting.TARGET_REPATH_DISTANCE.asDouble();
+        if (dx * dx + dy * dy + dz * dz > distance * distance)
+            return true;
+        // the end of the path is where the target was, so keep closing in,
+        // doubling the wait while no path to the target can be found, up to the
+        // maximum interval
+        return navigation.f() && ticksSinceRepath >= 1 << failedRepaths && distanceSquared() > ATTACK_DISTANCE;
+    }
+
     @Override
     public void stop() {
         navigation.g();
@@ -94,8 +126,21 @@ public class MCTargetStrategy implements PathStrategy, EntityTarget {
         }
         if (cancelReason != null)
             return true;
-        navigation.a(parameters.avoidWater());
-        navigation.a(target, parameters.speed());
+        if (shouldRepath()) {
+            navigation.a(parameters.avoidWater());
+            navigation.a(target, parameters.speed());
+            targetX = target.locX;
+            targetY = target.locY;
+            targetZ = target.locZ;
+            repathTicks = Setting.TARGET_REPATH_MAX_INTERVAL.asInt();
+            ticksSinceRepath = 0;
+            failedRepaths = navigation.f() ? Math.min(failedRepaths + 1, MAX_BACKOFF_SHIFT) : 0;
+        } else {
+            repathTicks--;
+            ticksSinceRepath++;
+        }
+        if (lineOfSightTicks > 0)
+            lineOfSightTicks--;
         NMS.look(handle.getControllerLook(), handle, target);
         if (aggro && canAttack()) {
             AttackStrategy strategy = parameters.attackStrategy();
@@ -120,5 +165,6 @@ public class MCTargetStrategy implements PathStrategy, EntityTarget {
     private static final double ATTACK_DISTANCE = 1.75 * 1.75;
 
     private static final Location HANDLE_LOCATION = new Location(null, 0, 0, 0);
+    private static final int MAX_BACKOFF_SHIFT = 5;
     private static final Location TARGET_LOCATION = new Location(null, 0, 0, 0);
 }
\ No newline at end of file
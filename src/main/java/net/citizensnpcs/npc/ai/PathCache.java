@@ -0,0 +1,193 @@
+package net.citizensnpcs.npc.ai;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.citizensnpcs.Settings.Setting;
+import net.citizensnpcs.api.ai.NavigatorParameters;
+import net.citizensnpcs.api.astar.pathfinder.BlockExaminer;
+import net.citizensnpcs.npc.ai.PathInvalidationIndex.PathObserver;
+
+import org.bukkit.Location;
+import org.bukkit.util.Vector;
+
+/**
+ * Remembers recently found paths, so that NPCs walking the same legs over and
+ * over, such as waypoint patrols, don't search for them again each time.
+ * Paths are keyed by the pathfinder used, the world, the start and goal
+ * blocks and the navigator parameters that affect the search.
+ *
+ * The least recently used paths are dropped once the cached paths hold more
+ * than the configured number of points. Paths are dropped as soon as a block
+ * along them changes, as reported by the {@link PathInvalidationIndex}, and
+ * paths older than the configured expiry are not returned in case a change
+ * was missed. Must only be used on the main thread.
+ */
+public class PathCache {
+    private final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75F, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final PathInvalidationIndex index;
+    private final AtomicLong lookups = new AtomicLong();
+    private int points;
+
+    public PathCache(PathInvalidationIndex index) {
+        this.index = index;
+    }
+
+    public void clear() {
+        for (Entry entry : entries.values()) {
+            index.unregister(entry);
+        }
+        entries.clear();
+        points = 0;
+    }
+
+    /**
+     * Returns the cached path between the two locations, or null if there is
+     * none. The returned points must not be modified.
+     */
+    public Vector[] get(Key key) {
+        lookups.incrementAndGet();
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+        if (System.currentTimeMillis() - entry.created > Setting.PATH_CACHE_EXPIRY.asInt() * 1000L) {
+            remove(key);
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.points;
+    }
+
+    /**
+     * Returns the percentage of lookups that found a path since the
+     * statistics were last reset.
+     */
+    public int getHitRate() {
+        long count = lookups.get();
+        return count == 0 ? 0 : (int) (hits.get() * 100 / count);
+    }
+
+    public void put(Key key, Vector[] path) {
+        int max = Setting.PATH_CACHE_MAX_POINTS.asInt();
+        if (path.length > max)
+            return;
+        remove(key);
+        Entry entry = new Entry(key, path);
+        entries.put(key, entry);
+        index.register(key.world, path, entry);
+        points += path.length;
+        Iterator<Entry> itr = entries.values().iterator();
+        while (points > max && itr.hasNext()) {
+            Entry eldest = itr.next();
+            index.unregister(eldest);
+            points -= eldest.points.length;
+            itr.remove();
+        }
+    }
+
+    private void remove(Key key) {
+        Entry old = entries.remove(key);
+        if (old == null)
+            return;
+        index.unregister(old);
+        points -= old.points.length;
+    }
+
+    public void resetStatistics() {
+        hits.set(0);
+        lookups.set(0);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private class Entry implements PathObserver {
+        private final long created = System.currentTimeMillis();
+        private final Key key;
+        private final Vector[] points;
+
+        private Entry(Key key, Vector[] points) {
+            this.key = key;
+            this.points = points;
+        }
+
+        @Override
+        public void onPathInvalidated() {
+            // only drop the entry if it hasn't already been replaced
+            if (entries.get(key) == this)
+                remove(key);
+        }
+    }
+
+    public static class Key {
+        private final boolean avoidWater;
+        private final Class<?>[] examiners;
+        private final int hashCode;
+        private final boolean newPathfinder;
+        private final float range;
+        private final String world;
+        private final int x1, y1, z1, x2, y2, z2;
+
+        public Key(boolean newPathfinder, Location from, Location to, NavigatorParameters params) {
+            this.newPathfinder = newPathfinder;
+            this.world = from.getWorld().getName();
+            this.x1 = from.getBlockX();
+            this.y1 = from.getBlockY();
+            this.z1 = from.getBlockZ();
+            this.x2 = to.getBlockX();
+            this.y2 = to.getBlockY();
+            this.z2 = to.getBlockZ();
+            this.avoidWater = params.avoidWater();
+            this.range = params.range();
+            // examiners are compared by type, as each navigation gets its own
+            BlockExaminer[] blockExaminers = params.examiners();
+            this.examiners = new Class<?>[blockExaminers.length];
+            for (int i = 0; i < blockExaminers.length; i++) {
+                examiners[i] = blockExaminers[i].getClass();
+            }
+            this.hashCode = computeHashCode();
+        }
+
+        private int computeHashCode() {
+            final int prime = 31;
+            int result = prime + (avoidWater ? 1231 : 1237);
+            result = prime * result + Arrays.hashCode(examiners);
+            result = prime * result + (newPathfinder ? 1231 : 1237);
+            result = prime * result + Float.floatToIntBits(range);
+            result = prime * result + world.hashCode();
+            result = prime * result + x1;
+            result = prime * result + y1;
+            result = prime * result + z1;
+            result = prime * result + x2;
+            result = prime * result + y2;
+            return prime * result + z2;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null || getClass() != obj.getClass())
+                return false;
+            Key other = (Key) obj;
+            return hashCode == other.hashCode && x1 == other.x1 && y1 == other.y1 && z1 == other.z1
+                    && x2 == other.x2 && y2 == other.y2 && z2 == other.z2 && avoidWater == other.avoidWater
+                    && newPathfinder == other.newPathfinder && Float.compare(range, other.range) == 0
+                    && world.equals(other.world) && Arrays.equals(examiners, other.examiners);
+        }
+
+        public String getWorld() {
+            return world;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package net.citizensnpcs.npc.ai;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.citizensnpcs.util.LongObjectMap;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.util.Vector;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Indexes cached and followed paths by the 16x16x16 chunk sections they pass
+ * through, keyed per world by a packed section long. When a block changes,
+ * only the paths through its section are checked, and only those using the
+ * block itself are told, so that they can be dropped or searched for again
+ * instead of leading NPCs into the changed block.
+ *
+ * A path uses the blocks it walks through, the blocks it stands on and the
+ * block above its head.
+ */
+public class PathInvalidationIndex implements Listener {
+    private final Map<PathObserver, Registration> registrations = Maps.newHashMap();
+    private final Map<String, LongObjectMap<List<PathObserver>>> worlds = Maps.newHashMap();
+
+    public void clear() {
+        registrations.clear();
+        worlds.clear();
+    }
+
+    private void invalidate(Block block) {
+        LongObjectMap<List<PathObserver>> sections = worlds.get(block.getWorld().getName());
+        if (sections == null)
+            return;
+        List<PathObserver> observers = sections.get(toSectionKey(block.getX(), block.getY(), block.getZ()));
+        if (observers == null)
+            return;
+        long key = toBlockKey(block.getX(), block.getY(), block.getZ());
+        List<PathObserver> affected = null;
+        for (int i = 0; i < observers.size(); i++) {
+            PathObserver observer = observers.get(i);
+            if (Arrays.binarySearch(registrations.get(observer).blocks, key) < 0)
+                continue;
+            if (affected == null)
+                affected = Lists.newArrayListWithCapacity(2);
+            affected.add(observer);
+        }
+        if (affected == null)
+            return;
+        // observers may re-register while being told
+        for (PathObserver observer : affected) {
+            unregister(observer);
+            observer.onPathInvalidated();
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+    public void onBlockBreak(BlockBreakEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+    public void onBlockPhysics(BlockPhysicsEvent event) {
+        // most physics updates don't change the block, so only those that
+        // can move it are counted
+        Material type = event.getBlock().getType();
+        if (type == Material.SAND || type == Material.GRAVEL || type == Material.WATER
+                || type == Material.STATIONARY_WATER || type == Material.LAVA || type == Material.STATIONARY_LAVA)
+            invalidate(event.getBlock());
+    }
+
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        for (Block block : event.blockList()) {
+            invalidate(block);
+        }
+    }
+
+    /**
+     * Indexes the path so that the observer is told once when a block along
+     * it changes. The observer is then unregistered. Registering an observer
+     * again replaces its previous path.
+     */
+    public void register(String world, Vector[] path, PathObserver observer) {
+        unregister(observer);
+        Set<Long> blocks = Sets.newHashSet();
+        Set<Long> keys = Sets.newHashSet();
+        for (Vector point : path) {
+            int x = point.getBlockX(), y = point.getBlockY(), z = point.getBlockZ();
+            for (int dy = -1; dy <= 2; dy++) {
+                blocks.add(toBlockKey(x, y + dy, z));
+                keys.add(toSectionKey(x, y + dy, z));
+            }
+        }
+        LongObjectMap<List<PathObserver>> sections = worlds.get(world);
+        if (sections == null)
+            worlds.put(world, sections = new LongObjectMap<List<PathObserver>>());
+        long[] registered = new long[keys.size()];
+        int i = 0;
+        for (long key : keys) {
+            List<PathObserver> observers = sections.get(key);
+            if (observers == null)
+                sections.put(key, observers = Lists.newArrayListWithCapacity(2));
+            observers.add(observer);
+            registered[i++] = key;
+        }
+        long[] used = new long[blocks.size()];
+        i = 0;
+        for (long block : blocks) {
+            used[i++] = block;
+        }
+        Arrays.sort(used);
+        registrations.put(observer, new Registration(world, registered, used));
+    }
+
+    public int size() {
+        return registrations.size();
+    }
+
+    public void unregister(PathObserver observer) {
+        Registration registration = registrations.remove(observer);
+        if (registration == null)
+            return;
+        LongObjectMap<List<PathObserver>> sections = worlds.get(registration.world);
+        if (sections == null)
+            return;
+        for (long key : registration.keys) {
+            List<PathObserver> observers = sections.get(key);
+            if (observers == null)
+                continue;
+            observers.remove(observer);
+            if (observers.isEmpty())
+                sections.remove(key);
+        }
+        if (sections.isEmpty())
+            worlds.remove(registration.world);
+    }
+
+    public interface PathObserver {
+        /**
+         * Called on the main thread when a block along the registered path
+         * has changed.
+         */
+        void onPathInvalidated();
+    }
+
+    private static class Registration {
+        // sorted, for binary search
+        private final long[] blocks;
+        private final long[] keys;
+        private final String world;
+
+        private Registration(String world, long[] keys, long[] blocks) {
+            this.world = world;
+            this.keys = keys;
+            this.blocks = blocks;
+        }
+    }
+
+    private static long toBlockKey(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+
+    private static long toSectionKey(int x, int y, int z) {
+        // sections outside the world's height share the top or bottom key
+        int section = Math.max(0, Math.min(15, y >> 4));
+        return LongObjectMap.toChunkKey(x >> 4, z >> 4) << 4 | section;
+    }
+}
@@ -0,0 +1,145 @@
+package net.citizensnpcs.npc.ai;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import net.citizensnpcs.api.astar.pathfinder.BlockSource;
+import net.citizensnpcs.util.LongObjectMap;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Location;
+import org.bukkit.World;
+
+import com.google.common.collect.Maps;
+
+/**
+ * A block source reading from chunk snapshots taken when it is created, so
+ * that it can be searched off the main thread. Only the loaded chunks along
+ * the straight line to the destination, and the chunks either side of it, are
+ * copied. Blocks anywhere else read as air, so the search stays within that
+ * corridor.
+ *
+ * Snapshots are kept for a few ticks by the {@link SnapshotCache} and shared
+ * between sources, so many NPCs starting to navigate in the same area only
+ * copy each chunk once.
+ */
+public class SnapshotBlockSource extends BlockSource {
+    private final LongObjectMap<ChunkSnapshot> chunks = new LongObjectMap<ChunkSnapshot>();
+    private final World world;
+
+    /**
+     * Takes snapshots of the chunks in the corridor from the location to the
+     * destination, limited to <code>radius</code> blocks of the location. Must
+     * be called on the main thread.
+     */
+    public SnapshotBlockSource(Location location, Location destination, float radius) {
+        this.world = location.getWorld();
+        int fromX = location.getBlockX() >> 4, fromZ = location.getBlockZ() >> 4;
+        int toX = destination.getBlockX() >> 4, toZ = destination.getBlockZ() >> 4;
+        int minX = (int) Math.floor(location.getX() - radius) >> 4;
+        int maxX = (int) Math.floor(location.getX() + radius) >> 4;
+        int minZ = (int) Math.floor(location.getZ() - radius) >> 4;
+        int maxZ = (int) Math.floor(location.getZ() + radius) >> 4;
+        minX = Math.max(minX, Math.min(fromX, toX) - CORRIDOR_WIDTH);
+        maxX = Math.min(maxX, Math.max(fromX, toX) + CORRIDOR_WIDTH);
+        minZ = Math.max(minZ, Math.min(fromZ, toZ) - CORRIDOR_WIDTH);
+        maxZ = Math.min(maxZ, Math.max(fromZ, toZ) + CORRIDOR_WIDTH);
+        for (int x = minX; x <= maxX; x++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                if (!isInCorridor(x, z, fromX, fromZ, toX, toZ) || !world.isChunkLoaded(x, z))
+                    continue;
+                chunks.put(LongObjectMap.toChunkKey(x, z), CACHE.getSnapshot(world, x, z));
+            }
+        }
+    }
+
+    @Override
+    public int getBlockTypeIdAt(int x, int y, int z) {
+        if (y < 0 || y >= world.getMaxHeight())
+            return 0;
+        ChunkSnapshot snapshot = chunks.get(LongObjectMap.toChunkKey(x >> 4, z >> 4));
+        return snapshot == null ? 0 : snapshot.getBlockTypeId(x & 15, y, z & 15);
+    }
+
+    @Override
+    public World getWorld() {
+        return world;
+    }
+
+    /**
+     * Keeps recent chunk snapshots so that they can be shared, and drops
+     * them once they are a few ticks old, so that nothing is held on to
+     * once NPCs stop starting to navigate. It must be run once per tick.
+     */
+    public static class SnapshotCache implements Runnable {
+        private int currentTick;
+        private final Map<String, LongObjectMap<TimedSnapshot>> worlds = Maps.newHashMap();
+
+        private ChunkSnapshot getSnapshot(World world, int x, int z) {
+            LongObjectMap<TimedSnapshot> chunks = worlds.get(world.getName());
+            if (chunks == null)
+                worlds.put(world.getName(), chunks = new LongObjectMap<TimedSnapshot>());
+            long key = LongObjectMap.toChunkKey(x, z);
+            TimedSnapshot snapshot = chunks.get(key);
+            if (snapshot == null) {
+                snapshot = new TimedSnapshot(world.getChunkAt(x, z).getChunkSnapshot(false, false, false),
+                        currentTick);
+                chunks.put(key, snapshot);
+            }
+            return snapshot.snapshot;
+        }
+
+        @Override
+        public void run() {
+            currentTick++;
+            Iterator<LongObjectMap<TimedSnapshot>> itr = worlds.values().iterator();
+            while (itr.hasNext()) {
+                LongObjectMap<TimedSnapshot> chunks = itr.next();
+                for (long key : chunks.keys()) {
+                    if (currentTick - chunks.get(key).taken >= SNAPSHOT_LIFETIME)
+                        chunks.remove(key);
+                }
+                if (chunks.isEmpty())
+                    itr.remove();
+            }
+        }
+    }
+
+    private static class TimedSnapshot {
+        private final ChunkSnapshot snapshot;
+        private final int taken;
+
+        private TimedSnapshot(ChunkSnapshot snapshot, int taken) {
+            this.snapshot = snapshot;
+            this.taken = taken;
+        }
+    }
+
+    /**
+     * Returns the cache sharing snapshots between sources. It must be run
+     * once per tick.
+     */
+    public static SnapshotCache getSnapshotCache() {
+        return CACHE;
+    }
+
+    /**
+     * Returns whether the chunk is within {@link #CORRIDOR_WIDTH} chunks of
+     * the line between the two chunks.
+     */
+    private static boolean isInCorridor(int x, int z, int fromX, int fromZ, int toX, int toZ) {
+        long dx = toX - fromX, dz = toZ - fromZ;
+        long lengthSquared = dx * dx + dz * dz;
+        double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, ((x - fromX) * dx + (z - fromZ) * dz)
+                / (double) lengthSquared));
+        double nearestX = fromX + t * dx, nearestZ = fromZ + t * dz;
+        double offX = x - nearestX, offZ = z - nearestZ;
+        return offX * offX + offZ * offZ <= CORRIDOR_WIDTH * CORRIDOR_WIDTH;
+    }
+
+    private static final SnapshotCache CACHE = new SnapshotCache();
+    // chunks either side of the straight line that are copied
+    private static final int CORRIDOR_WIDTH = 1;
+    // ticks that a snapshot is shared for before it is taken again
+    private static final int SNAPSHOT_LIFETIME = 5;
+}
@@ -66,7 +66,8 @@ public class CreeperController extends MobEntityController {
 
         @Override
         public void bl() {
-            super.bl();
+            if (npc == null || npc.shouldUpdateAI())
+                super.bl();
             if (npc != null)
                 npc.update();
         }
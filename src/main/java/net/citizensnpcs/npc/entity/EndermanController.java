@@ -59,7 +59,8 @@ public class EndermanController extends MobEntityController {
 
         @Override
         public void bl() {
-            super.bl();
+            if (npc == null || npc.shouldUpdateAI())
+                super.bl();
             if (npc != null)
                 npc.update();
         }
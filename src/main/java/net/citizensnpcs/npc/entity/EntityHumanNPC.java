@@ -6,6 +6,7 @@ import java.util.List;
 
 import net.citizensnpcs.api.event.NPCPushEvent;
 import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.npc.ActivationTier;
 import net.citizensnpcs.npc.CitizensNPC;
 import net.citizensnpcs.npc.ai.NPCHolder;
 import net.citizensnpcs.npc.network.EmptyNetHandler;
@@ -138,7 +139,7 @@ public class EntityHumanNPC extends EntityPlayer implements NPCHolder {
             motX = motY = motZ = 0;
 
         NMS.updateSenses(this);
-        if (npc.getNavigator().isNavigating()) {
+        if (npc.getNavigator().isNavigating() && npc.getActivationTier() != ActivationTier.FROZEN) {
             Navigation navigation = getNavigation();
             if (!navigation.f())
                 navigation.e();
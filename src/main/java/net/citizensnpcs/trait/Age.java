@@ -4,6 +4,7 @@ import net.citizensnpcs.api.persistence.Persist;
 import net.citizensnpcs.api.trait.Trait;
 import net.citizensnpcs.util.Messages;
 import net.citizensnpcs.util.Messaging;
+import net.citizensnpcs.util.Util;
 
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Ageable;
@@ -40,14 +41,17 @@ public class Age extends Trait implements Toggleable {
 
     @Override
     public void run() {
-        if (!locked && isAgeable())
+        if (!locked && isAgeable() && age != ageable.getAge()) {
             age = ageable.getAge();
+            Util.markDirty(npc, this);
+        }
     }
 
     public void setAge(int age) {
         this.age = age;
         if (isAgeable())
             ageable.setAge(age);
+        Util.markDirty(npc, this);
     }
 
     @Override
@@ -55,6 +59,7 @@ public class Age extends Trait implements Toggleable {
         locked = !locked;
         if (isAgeable())
             ageable.setAgeLock(locked);
+        Util.markDirty(npc, this);
         return locked;
     }
 
@@ -9,6 +9,7 @@ import net.citizensnpcs.api.util.DataKey;
 import net.citizensnpcs.util.Anchor;
 import net.citizensnpcs.util.Messages;
 import net.citizensnpcs.util.Messaging;
+import net.citizensnpcs.util.Util;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
@@ -25,6 +26,7 @@ public class Anchors extends Trait {
         if (anchors.contains(newAnchor))
             return false;
         anchors.add(newAnchor);
+        Util.markDirty(npc, this);
         return true;
     }
 
@@ -54,6 +56,7 @@ public class Anchors extends Trait {
     public boolean removeAnchor(Anchor anchor) {
         if (anchors.contains(anchor)) {
             anchors.remove(anchor);
+            Util.markDirty(npc, this);
             return true;
         }
         return false;
@@ -48,6 +48,7 @@ public class Controllable extends Trait implements Toggleable, CommandConfigurab
             explicitType = null;
         else if (args.hasValueFlag("explicittype"))
             explicitType = Util.matchEntityType(args.getFlag("explicittype"));
+        Util.markDirty(npc, this);
         if (npc.isSpawned())
             loadController();
     }
@@ -164,6 +165,7 @@ public class Controllable extends Trait implements Toggleable, CommandConfigurab
     @Override
     public boolean toggle() {
         enabled = !enabled;
+        Util.markDirty(npc, this);
         if (!enabled && getHandle().passenger != null)
             getHandle().passenger.getBukkitEntity().leaveVehicle();
         return enabled;
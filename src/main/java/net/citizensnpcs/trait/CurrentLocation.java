@@ -1,31 +1,67 @@
 package net.citizensnpcs.trait;
 
+import net.citizensnpcs.Settings.Setting;
 import net.citizensnpcs.api.persistence.Persist;
-import net.citizensnpcs.api.trait.Trait;
+import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.util.Util;
 
 import org.bukkit.Location;
 
-public class CurrentLocation extends Trait {
+public class CurrentLocation extends ScheduledTrait {
     @Persist(value = "", required = true)
     private Location location = new Location(null, 0, 0, 0);
+    private Location marked;
 
     public CurrentLocation() {
-        super("location");
+        super("location", Setting.LOCATION_TICK_INTERVAL.asInt(), 1);
     }
 
     public Location getLocation() {
         return location.getWorld() == null ? null : location;
     }
 
-    @Override
-    public void run() {
-        if (!npc.isSpawned())
+    /**
+     * Marks the trait dirty once the NPC has moved further than the configured
+     * threshold from where it was when last marked.
+     */
+    private void markIfMoved() {
+        if (location.getWorld() == null)
             return;
-        location = npc.getBukkitEntity().getLocation(location);
+        if (marked == null) {
+            marked = location.clone();
+            return;
+        }
+        double threshold = Setting.SAVE_LOCATION_THRESHOLD.asDouble();
+        if (marked.getWorld() == location.getWorld() && marked.distanceSquared(location) <= threshold * threshold)
+            return;
+        marked = location.clone();
+        Util.markDirty(npc, this);
+    }
+
+    @Override
+    public void onDespawn() {
+        // the entity may have moved since the last scheduled tick
+        if (npc.isSpawned())
+            location = npc.getBukkitEntity().getLocation(location);
+    }
+
+    @Override
+    public void save(DataKey key) {
+        if (npc.isSpawned())
+            location = npc.getBukkitEntity().getLocation(location);
     }
 
     public void setLocation(Location loc) {
         this.location = loc;
+        markIfMoved();
+    }
+
+    @Override
+    protected void tick() {
+        if (!npc.isSpawned())
+            return;
+        location = npc.getBukkitEntity().getLocation(location);
+        markIfMoved();
     }
 
     @Override
@@ -2,6 +2,7 @@ package net.citizensnpcs.trait;
 
 import net.citizensnpcs.api.persistence.Persist;
 import net.citizensnpcs.api.trait.Trait;
+import net.citizensnpcs.util.Util;
 
 import org.bukkit.util.Vector;
 
@@ -15,6 +16,7 @@ public class Gravity extends Trait implements Toggleable {
 
     public void gravitate(boolean gravitate) {
         enabled = gravitate;
+        Util.markDirty(npc, this);
     }
 
     @Override
@@ -28,6 +30,8 @@ public class Gravity extends Trait implements Toggleable {
 
     @Override
     public boolean toggle() {
-        return enabled = !enabled;
+        enabled = !enabled;
+        Util.markDirty(npc, this);
+        return enabled;
     }
 }
@@ -7,7 +7,6 @@ import java.util.List;
 import net.citizensnpcs.Settings.Setting;
 import net.citizensnpcs.api.CitizensAPI;
 import net.citizensnpcs.api.exception.NPCLoadException;
-import net.citizensnpcs.api.trait.Trait;
 import net.citizensnpcs.api.util.DataKey;
 import net.citizensnpcs.command.CommandConfigurable;
 import net.citizensnpcs.command.CommandContext;
@@ -18,7 +17,7 @@ import org.bukkit.entity.Entity;
 import org.bukkit.entity.EntityType;
 import org.bukkit.entity.Player;
 
-public class LookClose extends Trait implements Toggleable, CommandConfigurable {
+public class LookClose extends ScheduledTrait implements Toggleable, CommandConfigurable {
     private boolean enabled = Setting.DEFAULT_LOOK_CLOSE.asBoolean();
     private Player lookingAt;
     private double range = Setting.DEFAULT_LOOK_CLOSE_RANGE.asDouble();
@@ -26,7 +25,7 @@ public class LookClose extends Trait implements Toggleable, CommandConfigurable
     private boolean realisticLooking = Setting.DEFAULT_REALISTIC_LOOKING.asBoolean();
 
     public LookClose() {
-        super("lookclose");
+        super("lookclose", Setting.LOOK_CLOSE_TICK_INTERVAL.asInt());
     }
 
     private boolean canSeeTarget() {
@@ -38,6 +37,7 @@ public class LookClose extends Trait implements Toggleable, CommandConfigurable
         range = args.getFlagDouble("range", range);
         range = args.getFlagDouble("r", range);
         realisticLooking = args.hasFlag('r');
+        Util.markDirty(npc, this);
     }
 
     private void findNewTarget() {
@@ -82,6 +82,7 @@ public class LookClose extends Trait implements Toggleable, CommandConfigurable
 
     public void lookClose(boolean lookClose) {
         enabled = lookClose;
+        Util.markDirty(npc, this);
     }
 
     @Override
@@ -90,7 +91,7 @@ public class LookClose extends Trait implements Toggleable, CommandConfigurable
     }
 
     @Override
-    public void run() {
+    protected void tick() {
         if (!enabled || !npc.isSpawned() || npc.getNavigator().isNavigating())
             return;
         if (hasInvalidTarget())
@@ -117,6 +118,7 @@ public class LookClose extends Trait implements Toggleable, CommandConfigurable
     @Override
     public boolean toggle() {
         enabled = !enabled;
+        Util.markDirty(npc, this);
         return enabled;
     }
 
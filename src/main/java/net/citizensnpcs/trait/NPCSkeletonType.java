@@ -2,6 +2,7 @@ package net.citizensnpcs.trait;
 
 import net.citizensnpcs.api.persistence.Persist;
 import net.citizensnpcs.api.trait.Trait;
+import net.citizensnpcs.util.Util;
 
 import org.bukkit.entity.Skeleton;
 
@@ -27,5 +28,6 @@ public class NPCSkeletonType extends Trait {
 
     public void setType(org.bukkit.entity.Skeleton.SkeletonType type) {
         this.type = type;
+        Util.markDirty(npc, this);
     }
 }
@@ -29,6 +29,7 @@ public class Poses extends Trait {
         if (poses.containsValue(newPose) || poses.containsKey(name))
             return false;
         poses.put(name.toLowerCase(), newPose);
+        Util.markDirty(npc, this);
         return true;
     }
 
@@ -79,7 +80,10 @@ public class Poses extends Trait {
     }
 
     public boolean removePose(String pose) {
-        return poses.remove(pose.toLowerCase()) != null;
+        if (poses.remove(pose.toLowerCase()) == null)
+            return false;
+        Util.markDirty(npc, this);
+        return true;
     }
 
     @Override
@@ -2,6 +2,7 @@ package net.citizensnpcs.trait;
 
 import net.citizensnpcs.api.persistence.Persist;
 import net.citizensnpcs.api.trait.Trait;
+import net.citizensnpcs.util.Util;
 
 import org.bukkit.entity.Creeper;
 
@@ -22,6 +23,7 @@ public class Powered extends Trait implements Toggleable {
     @Override
     public boolean toggle() {
         powered = !powered;
+        Util.markDirty(npc, this);
         if (npc.getBukkitEntity() instanceof Creeper)
             ((Creeper) npc.getBukkitEntity()).setPowered(powered);
         return powered;
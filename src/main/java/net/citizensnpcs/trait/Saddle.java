@@ -3,6 +3,7 @@ package net.citizensnpcs.trait;
 import net.citizensnpcs.api.CitizensAPI;
 import net.citizensnpcs.api.persistence.Persist;
 import net.citizensnpcs.api.trait.Trait;
+import net.citizensnpcs.util.Util;
 
 import org.bukkit.entity.Pig;
 import org.bukkit.event.EventHandler;
@@ -35,6 +36,7 @@ public class Saddle extends Trait implements Toggleable {
     @Override
     public boolean toggle() {
         saddle = !saddle;
+        Util.markDirty(npc, this);
         if (pig)
             ((Pig) npc.getBukkitEntity()).setSaddle(saddle);
         return saddle;
@@ -0,0 +1,59 @@
+package net.citizensnpcs.trait;
+
+import net.citizensnpcs.api.CitizensAPI;
+import net.citizensnpcs.api.trait.Trait;
+import net.citizensnpcs.npc.CitizensNPCRegistry;
+import net.citizensnpcs.npc.TraitScheduler;
+
+/**
+ * A trait that only needs to do its work every few ticks. The NPC still calls
+ * {@link #run()} whenever it runs its traits, but {@link #tick()} is only
+ * called on the runs the {@link TraitScheduler} gives this NPC.
+ *
+ * The phase shifts the trait's ticks within its interval. Two of an NPC's
+ * scheduled traits are kept off the same tick only if their phases differ
+ * modulo the greatest common divisor of their intervals. Traits whose
+ * intervals share no factor, such as 2 and 5, always meet every so often
+ * (here once every 10 ticks), whatever their phases.
+ */
+public abstract class ScheduledTrait extends Trait {
+    private final int interval;
+    private final int phase;
+
+    protected ScheduledTrait(String name, int interval) {
+        this(name, interval, 0);
+    }
+
+    protected ScheduledTrait(String name, int interval, int phase) {
+        super(name);
+        this.interval = Math.max(1, interval);
+        this.phase = phase;
+    }
+
+    /**
+     * Returns the number of ticks between calls to {@link #tick()}.
+     */
+    public int getTickInterval() {
+        return interval;
+    }
+
+    public int getTickPhase() {
+        return phase;
+    }
+
+    @Override
+    public final void run() {
+        if (interval == 1 || getScheduler().isDue(npc, this))
+            tick();
+    }
+
+    /**
+     * Does the trait's work. Called once every {@link #getTickInterval()}
+     * ticks.
+     */
+    protected abstract void tick();
+
+    private static TraitScheduler getScheduler() {
+        return ((CitizensNPCRegistry) CitizensAPI.getNPCRegistry()).getTraitScheduler();
+    }
+}
@@ -3,6 +3,7 @@ package net.citizensnpcs.trait;
 import net.citizensnpcs.api.CitizensAPI;
 import net.citizensnpcs.api.persistence.Persist;
 import net.citizensnpcs.api.trait.Trait;
+import net.citizensnpcs.util.Util;
 
 import org.bukkit.entity.Sheep;
 import org.bukkit.event.EventHandler;
@@ -30,6 +31,7 @@ public class Sheared extends Trait implements Toggleable {
     @Override
     public boolean toggle() {
         sheared = !sheared;
+        Util.markDirty(npc, this);
         if (npc.getBukkitEntity() instanceof Sheep)
             ((Sheep) npc.getBukkitEntity()).setSheared(sheared);
         return sheared;
@@ -4,6 +4,7 @@ import net.citizensnpcs.api.persistence.Persist;
 import net.citizensnpcs.api.trait.Trait;
 import net.citizensnpcs.util.Messages;
 import net.citizensnpcs.util.Messaging;
+import net.citizensnpcs.util.Util;
 
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Slime;
@@ -33,6 +34,7 @@ public class SlimeSize extends Trait {
 
     public void setSize(int size) {
         this.size = size;
+        Util.markDirty(npc, this);
         if (slime)
             ((Slime) npc.getBukkitEntity()).setSize(size);
     }
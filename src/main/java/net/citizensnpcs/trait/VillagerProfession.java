@@ -3,6 +3,7 @@ package net.citizensnpcs.trait;
 import net.citizensnpcs.api.exception.NPCLoadException;
 import net.citizensnpcs.api.trait.Trait;
 import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.util.Util;
 
 import org.bukkit.entity.Villager;
 import org.bukkit.entity.Villager.Profession;
@@ -36,6 +37,7 @@ public class VillagerProfession extends Trait {
 
     public void setProfession(Profession profession) {
         this.profession = profession;
+        Util.markDirty(npc, this);
         if (npc.getBukkitEntity() instanceof Villager)
             ((Villager) npc.getBukkitEntity()).setProfession(profession);
     }
@@ -4,6 +4,7 @@ import net.citizensnpcs.api.CitizensAPI;
 import net.citizensnpcs.api.exception.NPCLoadException;
 import net.citizensnpcs.api.trait.Trait;
 import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.util.Util;
 
 import org.bukkit.DyeColor;
 import org.bukkit.entity.Sheep;
@@ -49,6 +50,7 @@ public class WoolColor extends Trait {
 
     public void setColor(DyeColor color) {
         this.color = color;
+        Util.markDirty(npc, this);
         if (sheep)
             ((Sheep) npc.getBukkitEntity()).setColor(color);
     }
@@ -2,6 +2,7 @@ package net.citizensnpcs.trait;
 
 import net.citizensnpcs.api.persistence.Persist;
 import net.citizensnpcs.api.trait.Trait;
+import net.citizensnpcs.util.Util;
 
 import org.bukkit.entity.Zombie;
 
@@ -28,6 +29,7 @@ public class ZombieModifier extends Trait {
 
     public boolean toggleBaby() {
         baby = !baby;
+        Util.markDirty(npc, this);
         if (zombie)
             ((Zombie) npc.getBukkitEntity()).setBaby(baby);
         return baby;
@@ -35,6 +37,7 @@ public class ZombieModifier extends Trait {
 
     public boolean toggleVillager() {
         villager = !villager;
+        Util.markDirty(npc, this);
         if (zombie)
             ((Zombie) npc.getBukkitEntity()).setVillager(villager);
         return villager;
@@ -12,9 +12,9 @@ import net.citizensnpcs.Settings.Setting;
 import net.citizensnpcs.api.CitizensAPI;
 import net.citizensnpcs.api.event.NPCRightClickEvent;
 import net.citizensnpcs.api.exception.NPCLoadException;
-import net.citizensnpcs.api.trait.Trait;
 import net.citizensnpcs.api.util.DataKey;
 import net.citizensnpcs.editor.Editor;
+import net.citizensnpcs.trait.ScheduledTrait;
 import net.citizensnpcs.trait.Toggleable;
 import net.citizensnpcs.util.Messages;
 import net.citizensnpcs.util.Messaging;
@@ -32,7 +32,7 @@ import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.plugin.Plugin;
 
-public class Text extends Trait implements Runnable, Toggleable, Listener, ConversationAbandonedListener {
+public class Text extends ScheduledTrait implements Toggleable, Listener, ConversationAbandonedListener {
     private final Map<String, Date> cooldowns = new HashMap<String, Date>();
     private int currentIndex;
     private String itemInHandPattern = Setting.TALK_ITEM.asString();
@@ -44,7 +44,9 @@ public class Text extends Trait implements Runnable, Toggleable, Listener, Conve
     private final List<String> text = new ArrayList<String>();
 
     public Text() {
-        super("text");
+        // odd, and not 1 mod 5, so that at the default intervals it never
+        // shares a tick with LookClose (phase 0) or CurrentLocation (phase 1)
+        super("text", Setting.TALK_CLOSE_TICK_INTERVAL.asInt(), 3);
         this.plugin = CitizensAPI.getPlugin();
     }
 
@@ -121,7 +123,7 @@ public class Text extends Trait implements Runnable, Toggleable, Listener, Conve
     }
 
     @Override
-    public void run() {
+    protected void tick() {
         if (!talkClose || !npc.isSpawned())
             return;
         List<Entity> nearby = npc.getBukkitEntity().getNearbyEntities(range, range, range);
@@ -12,7 +12,6 @@ import net.citizensnpcs.api.ai.event.NavigationCompleteEvent;
 import net.citizensnpcs.api.event.NPCDespawnEvent;
 import net.citizensnpcs.api.event.NPCRemoveEvent;
 import net.citizensnpcs.api.npc.NPC;
-import net.citizensnpcs.api.persistence.PersistenceLoader;
 import net.citizensnpcs.api.util.DataKey;
 import net.citizensnpcs.editor.Editor;
 import net.citizensnpcs.trait.waypoint.triggers.TriggerEditPrompt;
@@ -57,7 +56,7 @@ public class LinearWaypointProvider implements WaypointProvider {
     @Override
     public void load(DataKey key) {
         for (DataKey root : key.getRelative("points").getIntegerSubKeys()) {
-            Waypoint waypoint = PersistenceLoader.load(Waypoint.class, root);
+            Waypoint waypoint = Waypoint.load(root);
             if (waypoint == null)
                 continue;
             waypoints.add(waypoint);
@@ -79,7 +78,7 @@ public class LinearWaypointProvider implements WaypointProvider {
         key.removeKey("points");
         key = key.getRelative("points");
         for (int i = 0; i < waypoints.size(); ++i)
-            PersistenceLoader.save(waypoints.get(i), key.getRelative(i));
+            waypoints.get(i).save(key.getRelative(i));
     }
 
     @Override
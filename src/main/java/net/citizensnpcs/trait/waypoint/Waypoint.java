@@ -7,12 +7,14 @@ import net.citizensnpcs.api.CitizensAPI;
 import net.citizensnpcs.api.npc.NPC;
 import net.citizensnpcs.api.persistence.Persist;
 import net.citizensnpcs.api.persistence.PersistenceLoader;
+import net.citizensnpcs.api.util.DataKey;
 import net.citizensnpcs.trait.waypoint.triggers.DelayTrigger;
 import net.citizensnpcs.trait.waypoint.triggers.WaypointTrigger;
 import net.citizensnpcs.trait.waypoint.triggers.WaypointTriggerRegistry;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
+import org.bukkit.World;
 
 import com.google.common.collect.Lists;
 
@@ -70,6 +72,49 @@ public class Waypoint {
         }
     }
 
+    /**
+     * Saves the waypoint in the same layout that {@link PersistenceLoader}
+     * gives its {@link Persist} fields, without reflecting over them for every
+     * point.
+     */
+    public void save(DataKey root) {
+        DataKey locationKey = root.getRelative("location");
+        locationKey.setString("world", location.getWorld().getName());
+        locationKey.setDouble("x", location.getX());
+        locationKey.setDouble("y", location.getY());
+        locationKey.setDouble("z", location.getZ());
+        locationKey.setDouble("yaw", location.getYaw());
+        locationKey.setDouble("pitch", location.getPitch());
+        if (triggers == null)
+            return;
+        DataKey triggersKey = root.getRelative("triggers");
+        for (int i = 0; i < triggers.size(); i++) {
+            TRIGGERS.save(triggers.get(i), triggersKey.getRelative(i));
+        }
+    }
+
+    /**
+     * Loads a waypoint saved by {@link #save(DataKey)}, returning null if its
+     * location is missing or in a world that isn't loaded.
+     */
+    public static Waypoint load(DataKey root) {
+        DataKey locationKey = root.getRelative("location");
+        World world = Bukkit.getWorld(locationKey.getString("world", ""));
+        if (world == null)
+            return null;
+        Waypoint waypoint = new Waypoint(new Location(world, locationKey.getDouble("x"),
+                locationKey.getDouble("y"), locationKey.getDouble("z"), (float) locationKey.getDouble("yaw"),
+                (float) locationKey.getDouble("pitch")));
+        for (DataKey triggerKey : root.getRelative("triggers").getIntegerSubKeys()) {
+            WaypointTrigger trigger = (WaypointTrigger) TRIGGERS.create(triggerKey);
+            if (trigger != null)
+                waypoint.addTrigger(trigger);
+        }
+        return waypoint;
+    }
+
+    private static final WaypointTriggerRegistry TRIGGERS = new WaypointTriggerRegistry();
+
     static {
         PersistenceLoader.registerPersistDelegate(WaypointTrigger.class, WaypointTriggerRegistry.class);
     }
@@ -2,9 +2,9 @@ package net.citizensnpcs.trait.waypoint.triggers;
 
 import java.util.Map;
 
-import net.citizensnpcs.api.persistence.PersistenceLoader;
 import net.citizensnpcs.api.persistence.Persister;
 import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.util.PersistenceCodec;
 
 import org.bukkit.conversations.Prompt;
 
@@ -16,12 +16,12 @@ public class WaypointTriggerRegistry implements Persister {
     public Object create(DataKey root) {
         String type = root.getString("type");
         Class<? extends WaypointTrigger> clazz = triggers.get(type);
-        return clazz == null ? null : PersistenceLoader.load(clazz, root);
+        return clazz == null ? null : PersistenceCodec.create(clazz, root);
     }
 
     @Override
     public void save(Object instance, DataKey root) {
-        PersistenceLoader.save(instance, root);
+        PersistenceCodec.save(instance, root);
     }
 
     private static final Map<String, Class<? extends Prompt>> triggerPrompts = Maps.newHashMap();
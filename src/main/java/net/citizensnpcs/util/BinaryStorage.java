@@ -0,0 +1,613 @@
+package net.citizensnpcs.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.api.util.MemoryDataKey;
+import net.citizensnpcs.api.util.Storage;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+/**
+ * Stores the tree in a compact binary file which is read through a memory
+ * mapping. Key names are stored once in a string table and referred to by
+ * index. Each NPC is written as a separate length-prefixed record, and an index
+ * of ids to record offsets lets a single NPC be read without reading the
+ * others.
+ *
+ * If it is given a set of eager traits, loading reads each NPC's own data and
+ * only those traits, and the mapping is kept. The rest of an NPC is read by
+ * {@link #readNPC(int)} when the NPC is first used or about to be changed.
+ * Until then its record is copied unchanged into each new file.
+ *
+ * Layout (all integers big-endian):
+ *
+ * <pre>
+ * int magic, int version
+ * int string count, strings
+ * int global length, global section (every key outside of npc)
+ * int NPC count, (int id, int offset, int length) sorted by id
+ * NPC records, each a section
+ * </pre>
+ *
+ * If the file does not exist yet, the YAML saves are imported instead.
+ */
+public class BinaryStorage implements PartialStorage {
+    private final Set<String> eagerTraits;
+    private final File file;
+    private Mapping mapping;
+    // NPCs whose keys only hold what was read on load
+    private final BitSet partial = new BitSet();
+    private MemoryDataKey tree = new MemoryDataKey();
+    private final File yamlFile;
+
+    public BinaryStorage(File file, File yamlFile) {
+        this(file, yamlFile, null);
+    }
+
+    /**
+     * Creates a storage that only reads the given traits of each NPC on load,
+     * or every trait if <code>eagerTraits</code> is null.
+     */
+    public BinaryStorage(File file, File yamlFile, Set<String> eagerTraits) {
+        this.file = file;
+        this.yamlFile = yamlFile;
+        this.eagerTraits = eagerTraits;
+    }
+
+    @Override
+    public DataKey getKey(String root) {
+        return tree.getRelative(root);
+    }
+
+    @Override
+    public synchronized boolean load() {
+        try {
+            if (!file.exists() && StorageHelper.getTempFile(file).exists()
+                    && !StorageHelper.getTempFile(file).renameTo(file)) // crashed between deleting and renaming
+                return false;
+            if (file.exists()) {
+                Mapping loaded = new Mapping(file);
+                MemoryDataKey root = new MemoryDataKey();
+                partial.clear();
+                read(loaded, root, eagerTraits, partial);
+                tree = root;
+                mapping = partial.isEmpty() ? null : loaded;
+                return true;
+            }
+            if (yamlFile == null || !yamlFile.exists())
+                return true;
+            tree = readYaml(yamlFile);
+            // the YAML file is kept, so a failed write is retried by the next save
+            try {
+                save();
+                Messaging.logTr(Messages.BINARY_STORAGE_IMPORTED, yamlFile.getName(), file.getName());
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized DataKey readNPC(int id) {
+        DataKey key = tree.getRelative("npc." + id);
+        if (!partial.get(id))
+            return key;
+        partial.clear(id);
+        int entry = mapping.find(id);
+        if (entry < 0)
+            return key;
+        // the key still holds exactly what was read on load
+        tree.getRelative("npc").removeKey(Integer.toString(id));
+        key = tree.getRelative("npc." + id);
+        try {
+            readSection(mapping.getRecord(entry), mapping.strings, key);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (BufferUnderflowException e) {
+            e.printStackTrace();
+        }
+        return key;
+    }
+
+    @Override
+    public synchronized void save() {
+        try {
+            StorageHelper.writeAtomically(file, write(tree, mapping, partial));
+            // the records that were copied are read from the new file from now on
+            mapping = partial.isEmpty() ? null : new Mapping(file);
+        } catch (IOException e) {
+            // thrown so that the caller knows to retry
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BinaryStorage {file=" + file + "}";
+    }
+
+    /**
+     * Converts a binary save file to YAML.
+     */
+    public static void convertToYaml(File binary, File yaml, String header) throws IOException {
+        YamlConfiguration config = new YamlConfiguration();
+        config.options().header(header);
+        StorageHelper.copy(read(binary), config);
+        StorageHelper.writeAtomically(yaml, config.saveToString());
+    }
+
+    /**
+     * Converts a YAML save file to the binary format.
+     */
+    public static void convertFromYaml(File yaml, File binary) throws IOException {
+        StorageHelper.writeAtomically(binary, write(readYaml(yaml), null, null));
+    }
+
+    private static int intern(String string, Map<String, Integer> indices, List<String> strings) {
+        Integer index = indices.get(string);
+        if (index == null) {
+            indices.put(string, index = strings.size());
+            strings.add(string);
+        }
+        return index;
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static MemoryDataKey read(File file) throws IOException {
+        MemoryDataKey root = new MemoryDataKey();
+        read(new Mapping(file), root, null, null);
+        return root;
+    }
+
+    /**
+     * Reads the global section and every NPC into <code>root</code>. If
+     * <code>eagerTraits</code> is not null, only those traits are read and the
+     * ids of the NPCs are set in <code>partial</code>.
+     */
+    private static void read(Mapping mapping, DataKey root, Set<String> eagerTraits, BitSet partial)
+            throws IOException {
+        try {
+            ByteBuffer global = mapping.buffer.duplicate();
+            global.position(mapping.global);
+            readSection(global, mapping.strings, root);
+            for (int i = 0; i < mapping.count; i++) {
+                int id = mapping.getId(i);
+                DataKey key = root.getRelative("npc." + id);
+                if (eagerTraits == null) {
+                    readSection(mapping.getRecord(i), mapping.strings, key);
+                } else {
+                    readEager(mapping.getRecord(i), mapping.strings, key, eagerTraits);
+                    partial.set(id);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException(mapping.file + " is truncated");
+        }
+    }
+
+    /**
+     * Reads an NPC record, skipping every trait not in
+     * <code>eagerTraits</code>.
+     */
+    private static void readEager(ByteBuffer buffer, String[] strings, DataKey into, Set<String> eagerTraits)
+            throws IOException {
+        List<String> traitNames = Lists.newArrayList();
+        int size = buffer.getInt();
+        for (int i = 0; i < size; i++) {
+            String name = strings[buffer.getInt()];
+            if (!name.equals("traits") || buffer.get(buffer.position()) != TAG_SECTION) {
+                readNode(buffer, strings, into, name);
+                continue;
+            }
+            buffer.get();
+            DataKey traits = into.getRelative(name);
+            int traitCount = buffer.getInt();
+            for (int j = 0; j < traitCount; j++) {
+                String trait = strings[buffer.getInt()];
+                traitNames.add(trait);
+                if (eagerTraits.contains(trait)) {
+                    readNode(buffer, strings, traits, trait);
+                } else
+                    skipNode(buffer);
+            }
+        }
+        // skipped traits can only be found through the trait list
+        if (!into.keyExists("traitnames") && !traitNames.isEmpty())
+            into.setString("traitnames", Joiner.on(',').join(traitNames));
+    }
+
+    private static String[] readHeader(ByteBuffer buffer, File file) throws IOException {
+        if (buffer.getInt() != MAGIC)
+            throw new IOException(file + " is not a Citizens binary save file");
+        int version = buffer.getInt();
+        if (version > VERSION)
+            throw new IOException(file + " was written by a newer version (format " + version + ")");
+        String[] strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = readString(buffer);
+        return strings;
+    }
+
+    /**
+     * Reads a single NPC from a binary save file, returning null if it is not
+     * stored there. Only the header and the NPC's own record are read.
+     */
+    public static DataKey readNPC(File file, int id) throws IOException {
+        Mapping mapping = new Mapping(file);
+        int entry = mapping.find(id);
+        if (entry < 0)
+            return null;
+        MemoryDataKey key = new MemoryDataKey();
+        try {
+            readSection(mapping.getRecord(entry), mapping.strings, key);
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file + " is truncated");
+        }
+        return key;
+    }
+
+    private static void readNode(ByteBuffer buffer, String[] strings, DataKey into, String name)
+            throws IOException {
+        if (buffer.get(buffer.position()) == TAG_SECTION) {
+            buffer.get();
+            readSection(buffer, strings, into.getRelative(name));
+        } else
+            into.setRaw(name, readValue(buffer, strings));
+    }
+
+    private static void readSection(ByteBuffer buffer, String[] strings, DataKey into) throws IOException {
+        int size = buffer.getInt();
+        for (int i = 0; i < size; i++)
+            readNode(buffer, strings, into, strings[buffer.getInt()]);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static Object readValue(ByteBuffer buffer, String[] strings) throws IOException {
+        byte tag = buffer.get();
+        switch (tag) {
+            case TAG_BOOLEAN:
+                return buffer.get() != 0;
+            case TAG_DOUBLE:
+                return buffer.getDouble();
+            case TAG_INT:
+                return buffer.getInt();
+            case TAG_LIST:
+                int size = buffer.getInt();
+                List<Object> list = Lists.newArrayListWithCapacity(size);
+                for (int i = 0; i < size; i++)
+                    list.add(readValue(buffer, strings));
+                return list;
+            case TAG_LONG:
+                return buffer.getLong();
+            case TAG_MAP:
+                int entries = buffer.getInt();
+                Map<String, Object> map = Maps.newLinkedHashMap();
+                for (int i = 0; i < entries; i++)
+                    map.put(strings[buffer.getInt()], readValue(buffer, strings));
+                return map;
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return readString(buffer);
+            default:
+                throw new IOException("unknown tag " + tag);
+        }
+    }
+
+    private static MemoryDataKey readYaml(File yaml) throws IOException {
+        YamlConfiguration config = new YamlConfiguration();
+        try {
+            config.loadFromString(Files.toString(yaml, Charsets.UTF_8));
+        } catch (InvalidConfigurationException e) {
+            throw new IOException(yaml + " is not valid YAML: " + e.getMessage());
+        }
+        MemoryDataKey root = new MemoryDataKey();
+        StorageHelper.copy(config, root);
+        return root;
+    }
+
+    private static void skip(ByteBuffer buffer, int bytes) {
+        if (bytes < 0 || bytes > buffer.remaining())
+            throw new BufferUnderflowException();
+        buffer.position(buffer.position() + bytes);
+    }
+
+    private static void skipNode(ByteBuffer buffer) throws IOException {
+        if (buffer.get(buffer.position()) != TAG_SECTION) {
+            skipValue(buffer);
+            return;
+        }
+        buffer.get();
+        int size = buffer.getInt();
+        for (int i = 0; i < size; i++) {
+            buffer.getInt();
+            skipNode(buffer);
+        }
+    }
+
+    private static void skipValue(ByteBuffer buffer) throws IOException {
+        byte tag = buffer.get();
+        switch (tag) {
+            case TAG_BOOLEAN:
+                skip(buffer, 1);
+                break;
+            case TAG_DOUBLE:
+            case TAG_LONG:
+                skip(buffer, 8);
+                break;
+            case TAG_INT:
+                skip(buffer, 4);
+                break;
+            case TAG_LIST:
+                int size = buffer.getInt();
+                for (int i = 0; i < size; i++)
+                    skipValue(buffer);
+                break;
+            case TAG_MAP:
+                int entries = buffer.getInt();
+                for (int i = 0; i < entries; i++) {
+                    buffer.getInt();
+                    skipValue(buffer);
+                }
+                break;
+            case TAG_NULL:
+                break;
+            case TAG_STRING:
+                skip(buffer, buffer.getInt());
+                break;
+            default:
+                throw new IOException("unknown tag " + tag);
+        }
+    }
+
+    /**
+     * Encodes the tree. The records of the NPCs set in <code>partial</code>
+     * are copied unchanged from <code>source</code>, whose string table is
+     * kept so that they still refer to the right strings.
+     */
+    private static byte[] write(DataKey root, Mapping source, BitSet partial) throws IOException {
+        Map<String, Integer> indices = Maps.newHashMap();
+        List<String> strings = Lists.newArrayList();
+        boolean copy = source != null && !partial.isEmpty();
+        if (copy) {
+            for (String string : source.strings)
+                intern(string, indices, strings);
+        }
+
+        List<Integer> ids = Lists.newArrayList();
+        for (DataKey npc : root.getRelative("npc").getIntegerSubKeys())
+            ids.add(Integer.parseInt(npc.name()));
+        Collections.sort(ids);
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(records);
+        int[] offsets = new int[ids.size() + 1];
+        for (int i = 0; i < ids.size(); i++) {
+            offsets[i] = recordOut.size();
+            int id = ids.get(i);
+            int entry = copy && partial.get(id) ? source.find(id) : -1;
+            if (entry >= 0) {
+                source.copyRecord(entry, recordOut);
+            } else
+                writeSection(recordOut, root.getRelative("npc." + id), indices, strings);
+        }
+        offsets[ids.size()] = recordOut.size();
+
+        ByteArrayOutputStream global = new ByteArrayOutputStream();
+        DataOutputStream globalOut = new DataOutputStream(global);
+        int globalKeys = 0;
+        for (DataKey sub : root.getSubKeys()) {
+            if (!sub.name().equals("npc"))
+                globalKeys++;
+        }
+        globalOut.writeInt(globalKeys);
+        for (DataKey sub : root.getSubKeys()) {
+            if (sub.name().equals("npc"))
+                continue;
+            globalOut.writeInt(intern(sub.name(), indices, strings));
+            writeNode(globalOut, sub, indices, strings);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(records.size() + global.size() + 1024);
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(strings.size());
+        for (String string : strings)
+            writeString(data, string);
+        data.writeInt(global.size());
+        global.writeTo(data);
+        data.writeInt(ids.size());
+        int base = data.size() + ids.size() * INDEX_ENTRY_SIZE;
+        for (int i = 0; i < ids.size(); i++) {
+            data.writeInt(ids.get(i));
+            data.writeInt(base + offsets[i]);
+            data.writeInt(offsets[i + 1] - offsets[i]);
+        }
+        records.writeTo(data);
+        data.flush();
+        return out.toByteArray();
+    }
+
+    private static void writeNode(DataOutputStream out, DataKey key, Map<String, Integer> indices, List<String> strings)
+            throws IOException {
+        if (key.getSubKeys().iterator().hasNext()) {
+            out.writeByte(TAG_SECTION);
+            writeSection(out, key, indices, strings);
+        } else
+            writeValue(out, key.getRaw(""), indices, strings);
+    }
+
+    private static void writeSection(DataOutputStream out, DataKey key, Map<String, Integer> indices,
+            List<String> strings) throws IOException {
+        List<DataKey> subKeys = Lists.newArrayList(key.getSubKeys());
+        out.writeInt(subKeys.size());
+        for (DataKey sub : subKeys) {
+            out.writeInt(intern(sub.name(), indices, strings));
+            writeNode(out, sub, indices, strings);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeValue(DataOutputStream out, Object value, Map<String, Integer> indices,
+            List<String> strings) throws IOException {
+        if (value == null || value instanceof ConfigurationSection) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TAG_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(TAG_INT);
+            out.writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(TAG_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Number) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(TAG_LIST);
+            out.writeInt(list.size());
+            for (Object element : list)
+                writeValue(out, element, indices, strings);
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(TAG_MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                out.writeInt(intern(String.valueOf(entry.getKey()), indices, strings));
+                writeValue(out, entry.getValue(), indices, strings);
+            }
+        } else {
+            out.writeByte(TAG_STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    private static class Mapping {
+        private final ByteBuffer buffer;
+        private final int count;
+        private final File file;
+        private final int global;
+        private final int index;
+        private final String[] strings;
+
+        private Mapping(File file) throws IOException {
+            this.file = file;
+            buffer = map(file);
+            try {
+                strings = readHeader(buffer, file);
+                int globalLength = buffer.getInt();
+                global = buffer.position();
+                buffer.position(global + globalLength);
+                count = buffer.getInt();
+                index = buffer.position();
+            } catch (BufferUnderflowException e) {
+                throw new IOException(file + " is truncated");
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + " is truncated");
+            }
+            // checked up front, as records are read through absolute offsets
+            if (count < 0 || index + (long) count * INDEX_ENTRY_SIZE > buffer.limit())
+                throw new IOException(file + " is truncated");
+            for (int i = 0; i < count; i++) {
+                int entry = index + i * INDEX_ENTRY_SIZE;
+                int offset = buffer.getInt(entry + 4), length = buffer.getInt(entry + 8);
+                if (offset < 0 || length < 0 || offset + (long) length > buffer.limit())
+                    throw new IOException(file + " is truncated");
+            }
+        }
+
+        private void copyRecord(int entry, DataOutputStream out) throws IOException {
+            byte[] bytes = new byte[buffer.getInt(index + entry * INDEX_ENTRY_SIZE + 8)];
+            getRecord(entry).get(bytes);
+            out.write(bytes);
+        }
+
+        /**
+         * Returns the position of the id in the index, or -1 if it is not
+         * stored.
+         */
+        private int find(int id) {
+            int low = 0, high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int midId = getId(mid);
+                if (midId < id) {
+                    low = mid + 1;
+                } else if (midId > id) {
+                    high = mid - 1;
+                } else
+                    return mid;
+            }
+            return -1;
+        }
+
+        private int getId(int entry) {
+            return buffer.getInt(index + entry * INDEX_ENTRY_SIZE);
+        }
+
+        private ByteBuffer getRecord(int entry) {
+            ByteBuffer record = buffer.duplicate();
+            record.position(buffer.getInt(index + entry * INDEX_ENTRY_SIZE + 4));
+            return record;
+        }
+    }
+
+    private static final int INDEX_ENTRY_SIZE = 12;
+    private static final int MAGIC = 0x43495432; // CIT2
+    private static final byte TAG_BOOLEAN = 1;
+    private static final byte TAG_DOUBLE = 2;
+    private static final byte TAG_INT = 3;
+    private static final byte TAG_LIST = 4;
+    private static final byte TAG_LONG = 5;
+    private static final byte TAG_MAP = 6;
+    private static final byte TAG_NULL = 7;
+    private static final byte TAG_SECTION = 0;
+    private static final byte TAG_STRING = 8;
+    private static final int VERSION = 1;
+}
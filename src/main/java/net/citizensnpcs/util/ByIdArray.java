@@ -25,13 +25,7 @@ public class ByIdArray<T> implements Iterable<T> {
     }
 
     public int add(T t) {
-        int index = 0;
-        while (elementData[index++] != null) {
-            if (index >= elementData.length) {
-                ensureCapacity(elementData.length + 1);
-                index = elementData.length - 1;
-            }
-        }
+        int index = size == 0 ? 0 : highest + 1;
         put(index, t);
         return index;
     }
@@ -57,17 +51,17 @@ public class ByIdArray<T> implements Iterable<T> {
 
     private void fastRemove(int index) {
         ++modCount;
+        elementData[index] = null;
+        --size;
         if (index == highest)
             recalcHighest();
         if (index == lowest)
             recalcLowest();
-        elementData[index] = null;
-        --size;
     }
 
     @SuppressWarnings("unchecked")
     public T get(int index) {
-        if (index > elementData.length)
+        if (index >= elementData.length)
             return null;
         return (T) elementData[index];
     }
@@ -88,35 +82,35 @@ public class ByIdArray<T> implements Iterable<T> {
 
         ensureCapacity(index + 2);
 
+        if (elementData[index] == null)
+            ++size;
         elementData[index] = t;
-        ++size;
     }
 
     private void recalcHighest() {
         highest = elementData.length - 1;
-        while (highest != 0 && elementData[highest--] == null)
-            ;
+        while (highest > 0 && elementData[highest] == null)
+            highest--;
     }
 
     private void recalcLowest() {
         lowest = 0;
-        while (elementData.length > lowest && elementData[lowest++] == null)
-            ;
+        while (lowest < elementData.length - 1 && elementData[lowest] == null)
+            lowest++;
     }
 
     public T remove(int index) {
-        if (index > elementData.length || elementData[index] == null)
+        if (index >= elementData.length || elementData[index] == null)
             return null;
         ++modCount;
+        @SuppressWarnings("unchecked")
+        T prev = (T) elementData[index];
+        elementData[index] = null;
+        --size;
         if (index == highest)
             recalcHighest();
         if (index == lowest)
             recalcLowest();
-        @SuppressWarnings("unchecked")
-        T prev = (T) elementData[index];
-        elementData[index] = null;
-        if (prev != null)
-            --size;
         return prev;
     }
 
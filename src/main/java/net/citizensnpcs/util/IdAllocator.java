@@ -0,0 +1,73 @@
+package net.citizensnpcs.util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Hands out non-negative integer IDs in O(1). Released IDs are kept on a
+ * free-list and reused before the high-water mark is advanced. IDs skipped
+ * over by {@link #markUsed(int)} are only marked free in the bit set, in one
+ * range operation, and are handed out lowest first once the free-list is
+ * empty.
+ */
+public class IdAllocator {
+    private final BitSet free = new BitSet();
+    private int[] freeList = new int[16];
+    private int freeSize;
+    private int highWaterMark;
+
+    public int allocate() {
+        while (freeSize > 0) {
+            int id = freeList[--freeSize];
+            if (!free.get(id))
+                continue; // claimed through markUsed since being released
+            free.clear(id);
+            return id;
+        }
+        int skipped = free.nextSetBit(0);
+        if (skipped >= 0) {
+            free.clear(skipped);
+            return skipped;
+        }
+        return highWaterMark++;
+    }
+
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Marks the given ID as taken, for example when an NPC is created with an
+     * explicit ID.
+     */
+    public void markUsed(int id) {
+        if (id >= highWaterMark) {
+            free.set(highWaterMark, id);
+            highWaterMark = id + 1;
+        } else
+            free.clear(id);
+    }
+
+    public void release(int id) {
+        if (id < 0 || id >= highWaterMark || free.get(id))
+            return;
+        if (freeSize == freeList.length)
+            freeList = Arrays.copyOf(freeList, freeSize * 2);
+        freeList[freeSize++] = id;
+        free.set(id);
+    }
+
+    /**
+     * Resets the allocator so that every ID below the high-water mark that is
+     * not marked in <code>taken</code> is free.
+     */
+    public void reset(int highWaterMark, BitSet taken) {
+        free.clear();
+        freeSize = 0;
+        this.highWaterMark = Math.max(highWaterMark, taken.length());
+        for (int id = this.highWaterMark - 1; id >= 0; id--) {
+            if (!taken.get(id))
+                release(id);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package net.citizensnpcs.util;
+
+import net.citizensnpcs.api.util.Storage;
+
+/**
+ * A {@link Storage} that only writes the keys which have been marked as
+ * changed since the last save, rather than the whole tree.
+ */
+public interface IncrementalStorage extends Storage {
+    /**
+     * Marks the key at the given path, along with everything below it, as
+     * changed. A key that no longer exists at save time is recorded as
+     * removed.
+     */
+    public void markChanged(String path);
+}
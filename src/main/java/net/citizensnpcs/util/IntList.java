@@ -0,0 +1,52 @@
+package net.citizensnpcs.util;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints, avoiding the boxing of
+ * <code>List&lt;Integer&gt;</code>.
+ */
+public class IntList {
+    private int[] elements;
+    private int size;
+
+    public IntList() {
+        this(4);
+    }
+
+    public IntList(int capacity) {
+        elements = new int[capacity];
+    }
+
+    public void add(int value) {
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, Math.max(4, size * 2));
+        elements[size++] = value;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public boolean contains(int value) {
+        for (int i = 0; i < size; i++) {
+            if (elements[i] == value)
+                return true;
+        }
+        return false;
+    }
+
+    public int get(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        return elements[index];
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,228 @@
+package net.citizensnpcs.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.api.util.MemoryDataKey;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+/**
+ * Keeps the whole tree in memory and saves by appending a record for each
+ * changed key to a journal file, which is synced to disk before the save
+ * returns. Once the journal grows past the compaction size, the tree is
+ * written out as a YAML snapshot and the journal is emptied.
+ *
+ * The snapshot is written to a temporary file which is then renamed over the
+ * old one, and journal records carry a length and checksum, so a crash at any
+ * point leaves either the old or the new data for every key. Records are whole
+ * subtree replacements, and pending changes are journalled before a snapshot
+ * is written, so replaying the whole journal always ends in the state of the
+ * newest snapshot. This makes replaying it over a snapshot written just before
+ * a crash safe.
+ */
+public class JournalStorage implements IncrementalStorage {
+    private final Set<String> changed = Sets.newLinkedHashSet();
+    private final long compactionSize;
+    private final String header;
+    private final File journal;
+    private final File snapshot;
+    private MemoryDataKey tree = new MemoryDataKey();
+
+    public JournalStorage(File snapshot, String header, long compactionSize) {
+        this.snapshot = snapshot;
+        this.header = header;
+        this.compactionSize = compactionSize;
+        this.journal = new File(snapshot.getPath() + ".journal");
+    }
+
+    private void appendChanges() throws IOException {
+        if (changed.isEmpty())
+            return;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        for (String path : changed) {
+            YamlConfiguration record = new YamlConfiguration();
+            record.set(PATH_KEY, path);
+            if (tree.keyExists(path)) {
+                DataKey key = tree.getRelative(path);
+                if (key.getSubKeys().iterator().hasNext()) {
+                    StorageHelper.copy(key, record.createSection(DATA_KEY));
+                } else
+                    record.set(DATA_KEY, key.getRaw(""));
+            }
+            byte[] bytes = record.saveToString().getBytes(Charsets.UTF_8);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            out.writeInt(bytes.length);
+            out.writeInt((int) crc.getValue());
+            out.write(bytes);
+        }
+        long length = journal.length();
+        boolean written = false;
+        FileOutputStream stream = new FileOutputStream(journal, true);
+        try {
+            buffer.writeTo(stream);
+            stream.flush();
+            stream.getFD().sync();
+            written = true;
+        } finally {
+            stream.close();
+            // records appended by the retry must follow valid ones, as replay
+            // stops at the first torn record
+            if (!written)
+                truncate(length);
+        }
+        changed.clear();
+    }
+
+    private void compact() throws IOException {
+        // if the journal isn't emptied after the snapshot is written, replaying
+        // it must still end in the snapshot's state
+        appendChanges();
+        YamlConfiguration config = new YamlConfiguration();
+        config.options().header(header);
+        StorageHelper.copy(tree, config);
+        StorageHelper.writeAtomically(snapshot, config.saveToString());
+        // the snapshot now holds every record, so the journal can be emptied
+        FileOutputStream stream = new FileOutputStream(journal);
+        try {
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public DataKey getKey(String root) {
+        return tree.getRelative(root);
+    }
+
+    @Override
+    public boolean load() {
+        MemoryDataKey loaded = new MemoryDataKey();
+        File source = snapshot;
+        if (!source.exists() && StorageHelper.getTempFile(snapshot).exists())
+            source = StorageHelper.getTempFile(snapshot); // crashed between deleting and renaming
+        try {
+            if (source.exists()) {
+                YamlConfiguration config = new YamlConfiguration();
+                config.loadFromString(Files.toString(source, Charsets.UTF_8));
+                StorageHelper.copy(config, loaded);
+            }
+            if (journal.exists())
+                replay(loaded);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } catch (InvalidConfigurationException e) {
+            e.printStackTrace();
+            return false;
+        }
+        synchronized (this) {
+            tree = loaded;
+            changed.clear();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void markChanged(String path) {
+        changed.add(path);
+    }
+
+    private void replay(MemoryDataKey into) throws IOException {
+        long valid = 0, length = journal.length();
+        int records = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+        try {
+            while (valid < length) {
+                int size = in.readInt();
+                int checksum = in.readInt();
+                if (size < 0 || size > length - valid - RECORD_HEADER_SIZE)
+                    break;
+                byte[] bytes = new byte[size];
+                in.readFully(bytes);
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if ((int) crc.getValue() != checksum)
+                    break;
+                YamlConfiguration record = new YamlConfiguration();
+                try {
+                    record.loadFromString(new String(bytes, Charsets.UTF_8));
+                } catch (InvalidConfigurationException e) {
+                    break;
+                }
+                String path = record.getString(PATH_KEY);
+                into.removeKey(path);
+                Object data = record.get(DATA_KEY);
+                if (data instanceof ConfigurationSection) {
+                    StorageHelper.copy((ConfigurationSection) data, into.getRelative(path));
+                } else if (data != null)
+                    into.setRaw(path, data);
+                valid += RECORD_HEADER_SIZE + size;
+                records++;
+            }
+        } catch (EOFException e) {
+            // torn final record, handled below
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+        if (valid < length) {
+            // drop the partially written tail so new records follow valid ones
+            Messaging.logTr(Messages.JOURNAL_TRUNCATED, length - valid, journal.getName());
+            truncate(valid);
+        }
+        Messaging.debug("Replayed", records, "journal records from", journal.getName());
+    }
+
+    @Override
+    public synchronized void save() {
+        try {
+            if (journal.length() >= compactionSize || !snapshot.exists()) {
+                compact();
+            } else
+                appendChanges();
+        } catch (IOException e) {
+            // the changes stay marked; thrown so that the caller knows to retry
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JournalStorage {snapshot=" + snapshot + ", journal=" + journal + "}";
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        try {
+            file.setLength(length);
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+    }
+
+    private static final String DATA_KEY = "data";
+    private static final String PATH_KEY = "path";
+    private static final int RECORD_HEADER_SIZE = 8;
+}
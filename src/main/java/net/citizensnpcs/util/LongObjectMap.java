@@ -0,0 +1,143 @@
+package net.citizensnpcs.util;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from primitive <code>long</code> keys to
+ * objects. Lookups do not box the key, which matters on hot paths such as
+ * chunk events. Null values are not permitted.
+ */
+public class LongObjectMap<V> {
+    private long[] keys;
+    private int mask;
+    private int size;
+    private Object[] values;
+
+    public LongObjectMap() {
+        this(16);
+    }
+
+    public LongObjectMap(int expectedSize) {
+        int capacity = 4;
+        while (capacity < expectedSize * 2)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    public boolean containsKey(long key) {
+        return values[indexOf(key)] != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        return (V) values[indexOf(key)];
+    }
+
+    private int indexOf(long key) {
+        int index = hash(key) & mask;
+        while (values[index] != null && keys[index] != key)
+            index = (index + 1) & mask;
+        return index;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return A snapshot of the keys currently in the map
+     */
+    public long[] keys() {
+        long[] result = new long[size];
+        int found = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null)
+                result[found++] = keys[i];
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("value cannot be null");
+        int index = indexOf(key);
+        V prev = (V) values[index];
+        keys[index] = key;
+        values[index] = value;
+        if (prev == null && ++size * 2 > values.length)
+            resize(values.length * 2);
+        return prev;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int index = indexOf(key);
+        V prev = (V) values[index];
+        if (prev == null)
+            return null;
+        values[index] = null;
+        --size;
+        // shift back any entries in the probe chain that follow the removed
+        // slot so that lookups never stop early.
+        int next = (index + 1) & mask;
+        while (values[next] != null) {
+            int ideal = hash(keys[next]) & mask;
+            if (((next - ideal) & mask) >= ((next - index) & mask)) {
+                keys[index] = keys[next];
+                values[index] = values[next];
+                values[next] = null;
+                index = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return prev;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == null)
+                continue;
+            int index = indexOf(oldKeys[i]);
+            keys[index] = oldKeys[i];
+            values[index] = oldValues[i];
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    public static int getChunkX(long chunkKey) {
+        return (int) (chunkKey >> 32);
+    }
+
+    public static int getChunkZ(long chunkKey) {
+        return (int) chunkKey;
+    }
+
+    public static long toChunkKey(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+}
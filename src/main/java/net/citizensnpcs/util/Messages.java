@@ -19,6 +19,7 @@ public class Messages {
     public static final String BEHAVIOUR_HELP = "citizens.commands.npc.behaviour.help";
     public static final String BEHAVIOURS_ADDED = "citizens.commands.npc.behaviour.added";
     public static final String BEHAVIOURS_REMOVED = "citizens.commands.npc.behaviour.removed";
+    public static final String BINARY_STORAGE_IMPORTED = "citizens.saves.binary-imported";
     public static final String CHAT_TRIGGER_PROMPT = "citizens.editors.waypoints.triggers.chat.prompt";
     public static final String CITIZENS_IMPLEMENTATION_DISABLED = "citizens.changed-implementation";
     public static final String CITIZENS_INCOMPATIBLE = "citizens.notifications.incompatible-version";
@@ -49,6 +50,7 @@ public class Messages {
     public static final String CONTROLLABLE_SET = "citizens.commands.npc.controllable.set";
     public static final String CURRENT_WAYPOINT_PROVIDER = "citizens.waypoints.current-provider";
     public static final String DATABASE_CONNECTION_FAILED = "citizens.notifications.database-connection-failed";
+    public static final String DATABASE_IMPORTED = "citizens.saves.database-imported";
     public static final String DELAY_TRIGGER_PROMPT = "citizens.editors.waypoints.triggers.delay.prompt";
     public static final String ENTITY_TYPE_SET = "citizens.commands.npc.type.set";
     public static final String EQUIPMENT_EDITOR_ALL_ITEMS_REMOVED = "citizens.editors.equipment.all-items-removed";
@@ -69,6 +71,7 @@ public class Messages {
     public static final String ERROR_UPDATING_SPEED = "citizens.nms-erorrs.updating-land-modifier";
     public static final String EXCEPTION_UPDATING_NPC = "citizens.notifications.exception-updating-npc";
     public static final String FAILED_LOAD_SAVES = "citizens.saves.load-failed";
+    public static final String FAILED_SAVE = "citizens.saves.save-failed";
     public static final String FAILED_TO_MOUNT_NPC = "citizens.commands.npc.mount.failed";
     public static final String FAILED_TO_REMOVE = "citizens.commands.trait.failed-to-remove";
     public static final String GAMEMODE_DESCRIBE = "citizens.commands.npc.gamemode.describe";
@@ -80,11 +83,13 @@ public class Messages {
     public static final String INVALID_ANCHOR_NAME = "citizens.commands.npc.anchor.invalid-name";
     public static final String INVALID_ANIMATION = "citizens.editors.waypoints.triggers.animation.invalid-animation";
     public static final String INVALID_ENTITY_TYPE = "citizens.commands.npc.type.invalid";
+    public static final String INVALID_LIST_SORT = "citizens.commands.npc.list.invalid-sort";
     public static final String INVALID_POSE_NAME = "citizens.commands.npc.pose.invalid-name";
     public static final String INVALID_PROFESSION = "citizens.commands.npc.profession.invalid-profession";
     public static final String INVALID_SKELETON_TYPE = "citizens.commands.npc.skeletontype.invalid-type";
     public static final String INVALID_SPAWN_LOCATION = "citizens.commands.npc.create.invalid-location";
     public static final String INVALID_TRIGGER_TELEPORT_FORMAT = "citizens.editors.waypoints.triggers.teleport.invalid-format";
+    public static final String JOURNAL_TRUNCATED = "citizens.saves.journal-truncated";
     public static final String LINEAR_WAYPOINT_EDITOR_ADDED_WAYPOINT = "citizens.editors.waypoints.linear.added-waypoint";
     public static final String LINEAR_WAYPOINT_EDITOR_BEGIN = "citizens.editors.waypoints.linear.begin";
     public static final String LINEAR_WAYPOINT_EDITOR_EDIT_SLOT_SET = "citizens.editors.waypoints.linear.edit-slot-set";
@@ -142,11 +147,14 @@ public class Messages {
     public static final String REMOVED_FROM_PLAYERLIST = "citizens.commands.npc.playerlist.removed";
     public static final String SADDLED_SET = "citizens.editors.equipment.saddled-set";
     public static final String SADDLED_STOPPED = "citizens.editors.equipment.saddled-stopped";
+    public static final String SAVE_QUEUE_STATISTICS = "citizens.notifications.save-queue-statistics";
+    public static final String SAVE_STATISTICS = "citizens.notifications.save-statistics";
     public static final String SCRIPT_COMPILED = "citizens.commands.script.compiled";
     public static final String SCRIPT_COMPILING = "citizens.commands.script.compiling";
     public static final String SCRIPT_FILE_MISSING = "citizens.commands.script.file-missing";
     public static final String SELECTION_PROMPT = "citizens.editors.selection.start-prompt";
     public static final String SELECTION_PROMPT_INVALID_CHOICE = "citizens.conversations.selection.invalid-choice";
+    public static final String SHARDED_STORAGE_MIGRATED = "citizens.saves.sharded-migrated";
     public static final String SHEARED_SET = "citizens.editors.equipment.sheared-set";
     public static final String SHEARED_STOPPED = "citizens.editors.equipment.sheared-stopped";
     public static final String SIZE_DESCRIPTION = "citizens.commands.npc.size.description";
@@ -159,6 +167,7 @@ public class Messages {
     public static final String SPEED_MODIFIER_SET = "citizens.commands.npc.speed.set";
     public static final String TELEPORTED_TO_NPC = "citizens.commands.npc.tp.teleported";
     public static final String TEMPLATE_APPLIED = "citizens.commands.template.applied";
+    public static final String TEMPLATE_APPLYING = "citizens.commands.template.applying";
     public static final String TEMPLATE_CONFLICT = "citizens.commands.template.conflict";
     public static final String TEMPLATE_CREATED = "citizens.commands.template.created";
     public static final String TEMPLATE_MISSING = "citizens.commands.template.missing";
@@ -9,6 +9,8 @@ import java.util.Set;
 import java.util.WeakHashMap;
 
 import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.npc.CitizensNPC;
+import net.citizensnpcs.npc.ai.NPCHolder;
 import net.minecraft.server.v1_4_5.ControllerLook;
 import net.minecraft.server.v1_4_5.DamageSource;
 import net.minecraft.server.v1_4_5.EnchantmentManager;
@@ -259,6 +261,11 @@ public class NMS {
     }
 
     public static void updateAI(EntityLiving entity) {
+        if (entity instanceof NPCHolder) {
+            NPC npc = ((NPCHolder) entity).getNPC();
+            if (npc instanceof CitizensNPC && !((CitizensNPC) npc).shouldUpdateAI())
+                return;
+        }
         updateSenses(entity);
         entity.getNavigation().e();
         entity.getControllerMove().c();
@@ -19,6 +19,18 @@ public class Paginator {
         return this;
     }
 
+    /**
+     * Sends the added lines as the given page of <code>pages</code>, for
+     * callers that only build the lines of the page being shown. The page
+     * count is text so that an open-ended count such as <code>3+</code> can
+     * be shown.
+     */
+    public void sendPage(CommandSender sender, int page, String pages) {
+        Messaging.send(sender, StringHelper.wrapHeader("<e>" + header + " <f>" + page + "/" + pages));
+        for (String line : lines)
+            Messaging.send(sender, line);
+    }
+
     public boolean sendPage(CommandSender sender, int page) {
         int pages = (int) ((lines.size() / LINES_PER_PAGE == 0) ? 1 : Math.ceil((double) lines.size()
                 / LINES_PER_PAGE));
@@ -37,5 +49,5 @@ public class Paginator {
         return true;
     }
 
-    private static final int LINES_PER_PAGE = 9;
+    public static final int LINES_PER_PAGE = 9;
 }
\ No newline at end of file
@@ -0,0 +1,17 @@
+package net.citizensnpcs.util;
+
+import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.api.util.Storage;
+
+/**
+ * A {@link Storage} that may read only part of each NPC on load. The rest of
+ * an NPC is read by {@link #readNPC(int)}, which must be called before the
+ * NPC's key is read in full or changed.
+ */
+public interface PartialStorage extends Storage {
+    /**
+     * Reads the rest of the NPC into the tree if only part of it has been
+     * read, and returns the NPC's key.
+     */
+    public DataKey readNPC(int id);
+}
@@ -0,0 +1,250 @@
+package net.citizensnpcs.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Map;
+
+import net.citizensnpcs.api.exception.NPCLoadException;
+import net.citizensnpcs.api.persistence.Persist;
+import net.citizensnpcs.api.persistence.PersistenceLoader;
+import net.citizensnpcs.api.util.DataKey;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Loads and saves {@link Persist} fields using a field layout worked out once
+ * per class, rather than scanning the class's annotations for every instance.
+ * Classes whose persisted fields are all primitives, their wrappers or strings
+ * are handled here; any other class is passed on to {@link PersistenceLoader}
+ * so that custom persisters keep working. Waypoints, which hold a location and
+ * a list of triggers, are saved by hand in
+ * {@link net.citizensnpcs.trait.waypoint.Waypoint} instead.
+ */
+public class PersistenceCodec {
+    private final PersistField[] fields;
+
+    private PersistenceCodec(PersistField[] fields) {
+        this.fields = fields;
+    }
+
+    private void loadInto(Object instance, DataKey root) throws NPCLoadException {
+        for (PersistField field : fields) {
+            Object raw = root.getRaw(field.path);
+            if (raw == null) {
+                if (field.required)
+                    throw new NPCLoadException("missing required key " + field.path + " for "
+                            + instance.getClass().getSimpleName());
+                continue;
+            }
+            try {
+                field.type.set(field.field, instance, raw);
+            } catch (IllegalAccessException e) {
+                throw new NPCLoadException(e.getMessage());
+            } catch (NumberFormatException e) {
+                throw new NPCLoadException("invalid value " + raw + " for " + field.path);
+            }
+        }
+    }
+
+    private void saveFrom(Object instance, DataKey root) {
+        for (PersistField field : fields) {
+            try {
+                Object value = field.field.get(instance);
+                if (value != null)
+                    root.setRaw(field.path, value);
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class PersistField {
+        private final Field field;
+        private final String path;
+        private final boolean required;
+        private final FieldType type;
+
+        private PersistField(Field field, String path, boolean required, FieldType type) {
+            this.field = field;
+            this.path = path;
+            this.required = required;
+            this.type = type;
+        }
+    }
+
+    private static enum FieldType {
+        BOOLEAN {
+            @Override
+            void set(Field field, Object instance, Object raw) throws IllegalAccessException {
+                field.setBoolean(instance, raw instanceof Boolean ? (Boolean) raw : Boolean.parseBoolean(raw
+                        .toString()));
+            }
+        },
+        BOXED_BOOLEAN {
+            @Override
+            void set(Field field, Object instance, Object raw) throws IllegalAccessException {
+                field.set(instance, raw instanceof Boolean ? (Boolean) raw : Boolean.valueOf(raw.toString()));
+            }
+        },
+        BOXED_NUMBER {
+            @Override
+            void set(Field field, Object instance, Object raw) throws IllegalAccessException {
+                field.set(instance, box(field.getType(), toNumber(raw)));
+            }
+        },
+        BYTE {
+            @Override
+            void set(Field field, Object instance, Object raw) throws IllegalAccessException {
+                field.setByte(instance, toNumber(raw).byteValue());
+            }
+        },
+        DOUBLE {
+            @Override
+            void set(Field field, Object instance, Object raw) throws IllegalAccessException {
+                field.setDouble(instance, toNumber(raw).doubleValue());
+            }
+        },
+        FLOAT {
+            @Override
+            void set(Field field, Object instance, Object raw) throws IllegalAccessException {
+                field.setFloat(instance, toNumber(raw).floatValue());
+            }
+        },
+        INT {
+            @Override
+            void set(Field field, Object instance, Object raw) throws IllegalAccessException {
+                field.setInt(instance, toNumber(raw).intValue());
+            }
+        },
+        LONG {
+            @Override
+            void set(Field field, Object instance, Object raw) throws IllegalAccessException {
+                field.setLong(instance, toNumber(raw).longValue());
+            }
+        },
+        SHORT {
+            @Override
+            void set(Field field, Object instance, Object raw) throws IllegalAccessException {
+                field.setShort(instance, toNumber(raw).shortValue());
+            }
+        },
+        STRING {
+            @Override
+            void set(Field field, Object instance, Object raw) throws IllegalAccessException {
+                field.set(instance, raw.toString());
+            }
+        };
+
+        abstract void set(Field field, Object instance, Object raw) throws IllegalAccessException;
+
+        private static Object box(Class<?> type, Number number) {
+            if (type == Integer.class)
+                return number.intValue();
+            if (type == Double.class)
+                return number.doubleValue();
+            if (type == Float.class)
+                return number.floatValue();
+            if (type == Long.class)
+                return number.longValue();
+            if (type == Short.class)
+                return number.shortValue();
+            return number.byteValue();
+        }
+
+        private static Number toNumber(Object raw) {
+            return raw instanceof Number ? (Number) raw : Double.valueOf(raw.toString());
+        }
+    }
+
+    private static PersistenceCodec compile(Class<?> clazz) {
+        List<PersistField> fields = Lists.newArrayList();
+        for (Class<?> search = clazz; search != null && search != Object.class; search = search.getSuperclass()) {
+            for (Field field : search.getDeclaredFields()) {
+                Persist persist = field.getAnnotation(Persist.class);
+                if (persist == null)
+                    continue;
+                FieldType type = FIELD_TYPES.get(field.getType());
+                if (type == null || Modifier.isFinal(field.getModifiers()) || Modifier.isStatic(field.getModifiers()))
+                    return FALLBACK;
+                field.setAccessible(true);
+                String path = persist.value().equals(DEFAULT_KEY) ? field.getName() : persist.value();
+                fields.add(new PersistField(field, path, persist.required(), type));
+            }
+        }
+        return new PersistenceCodec(fields.toArray(new PersistField[fields.size()]));
+    }
+
+    /**
+     * Creates a new instance of the class using its no-argument constructor
+     * and loads it from the key, returning null if the data is invalid.
+     */
+    public static <T> T create(Class<? extends T> clazz, DataKey root) {
+        PersistenceCodec codec = get(clazz);
+        if (codec == FALLBACK)
+            return PersistenceLoader.load(clazz, root);
+        try {
+            T instance = clazz.newInstance();
+            codec.loadInto(instance, root);
+            return instance;
+        } catch (InstantiationException e) {
+            e.printStackTrace();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+        } catch (NPCLoadException e) {
+            Messaging.debug(e.getMessage());
+        }
+        return null;
+    }
+
+    private static PersistenceCodec get(Class<?> clazz) {
+        PersistenceCodec codec = CODECS.get(clazz);
+        if (codec == null) {
+            codec = compile(clazz);
+            CODECS.put(clazz, codec);
+        }
+        return codec;
+    }
+
+    public static void load(Object instance, DataKey root) throws NPCLoadException {
+        PersistenceCodec codec = get(instance.getClass());
+        if (codec == FALLBACK) {
+            PersistenceLoader.load(instance, root);
+        } else
+            codec.loadInto(instance, root);
+    }
+
+    public static void save(Object instance, DataKey root) {
+        PersistenceCodec codec = get(instance.getClass());
+        if (codec == FALLBACK) {
+            PersistenceLoader.save(instance, root);
+        } else
+            codec.saveFrom(instance, root);
+    }
+
+    private static final Map<Class<?>, PersistenceCodec> CODECS = Maps.newConcurrentMap();
+    private static final String DEFAULT_KEY;
+    private static final PersistenceCodec FALLBACK = new PersistenceCodec(null);
+    private static final Map<Class<?>, FieldType> FIELD_TYPES = ImmutableMap.<Class<?>, FieldType> builder()
+            .put(boolean.class, FieldType.BOOLEAN).put(Boolean.class, FieldType.BOXED_BOOLEAN)
+            .put(byte.class, FieldType.BYTE).put(Byte.class, FieldType.BOXED_NUMBER)
+            .put(double.class, FieldType.DOUBLE).put(Double.class, FieldType.BOXED_NUMBER)
+            .put(float.class, FieldType.FLOAT).put(Float.class, FieldType.BOXED_NUMBER)
+            .put(int.class, FieldType.INT).put(Integer.class, FieldType.BOXED_NUMBER)
+            .put(long.class, FieldType.LONG).put(Long.class, FieldType.BOXED_NUMBER)
+            .put(short.class, FieldType.SHORT).put(Short.class, FieldType.BOXED_NUMBER)
+            .put(String.class, FieldType.STRING).build();
+
+    static {
+        String defaultKey;
+        try {
+            // the key used when a field's annotation does not name one
+            defaultKey = (String) Persist.class.getMethod("value").getDefaultValue();
+        } catch (NoSuchMethodException e) {
+            defaultKey = "UNINITIALISED";
+        }
+        DEFAULT_KEY = defaultKey;
+    }
+}
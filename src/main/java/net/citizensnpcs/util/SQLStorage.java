@@ -0,0 +1,269 @@
+package net.citizensnpcs.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+
+import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.api.util.MemoryDataKey;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+/**
+ * Stores each NPC as a row of YAML text in a SQL table, with keys outside of
+ * <code>npc</code> in a second table. A save writes only the rows that have
+ * changed, in one transaction using batched prepared statements, and the
+ * whole tree is read with one query per table when loading. Top-level keys
+ * holding a single value are flagged in their own column, so they can't be
+ * confused with a section that happens to have a <code>value</code> subkey.
+ *
+ * Only standard SQL is used, so an embedded database such as H2 or SQLite
+ * works as well as a server. If the tables are empty, the YAML saves are
+ * imported.
+ */
+public class SQLStorage implements IncrementalStorage {
+    private final Set<String> changed = Sets.newHashSet();
+    private Connection connection;
+    private final PreparedStatement[] deletes = new PreparedStatement[TABLES.length];
+    private final String driver;
+    private final PreparedStatement[] inserts = new PreparedStatement[TABLES.length];
+    private final String password;
+    private MemoryDataKey tree = new MemoryDataKey();
+    private final String url;
+    private final String username;
+    private final File yamlFile;
+
+    public SQLStorage(String driver, String url, String username, String password, File yamlFile) {
+        this.driver = driver;
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.yamlFile = yamlFile;
+    }
+
+    private void addRow(PreparedStatement insert, String key, DataKey data) throws SQLException {
+        YamlConfiguration config = new YamlConfiguration();
+        boolean scalar = !data.getSubKeys().iterator().hasNext();
+        if (scalar) {
+            config.set(VALUE_KEY, data.getRaw(""));
+        } else
+            StorageHelper.copy(data, config);
+        insert.setString(1, key);
+        insert.setInt(2, scalar ? SCALAR_ROW : SECTION_ROW);
+        insert.setString(3, config.saveToString());
+        insert.addBatch();
+    }
+
+    private Connection connect() throws SQLException {
+        if (connection != null && !connection.isClosed())
+            return connection;
+        if (!driver.isEmpty()) {
+            try {
+                Class.forName(driver);
+            } catch (ClassNotFoundException e) {
+                throw new SQLException("database driver " + driver + " not found");
+            }
+        }
+        connection = DriverManager.getConnection(url, username, password);
+        connection.setAutoCommit(false);
+        createTables(connection);
+        // the statements are prepared once and reused by every save
+        for (int i = 0; i < TABLES.length; i++) {
+            deletes[i] = connection.prepareStatement("DELETE FROM " + TABLES[i] + " WHERE id = ?");
+            inserts[i] = connection.prepareStatement("INSERT INTO " + TABLES[i]
+                    + " (id, kind, data) VALUES (?, ?, ?)");
+        }
+        return connection;
+    }
+
+    private void createTables(Connection conn) throws SQLException {
+        Statement statement = conn.createStatement();
+        try {
+            for (String table : TABLES)
+                statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + table
+                        + " (id VARCHAR(255) PRIMARY KEY, kind SMALLINT NOT NULL, data TEXT NOT NULL)");
+            conn.commit();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private void disconnect() {
+        if (connection == null)
+            return;
+        for (int i = 0; i < TABLES.length; i++) {
+            close(deletes[i]);
+            close(inserts[i]);
+            deletes[i] = inserts[i] = null;
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // already broken
+        }
+        connection = null;
+    }
+
+    @Override
+    public DataKey getKey(String root) {
+        return tree.getRelative(root);
+    }
+
+    @Override
+    public boolean load() {
+        MemoryDataKey loaded = new MemoryDataKey();
+        int rows;
+        try {
+            Connection conn = connect();
+            rows = readTable(conn, TABLES[GLOBAL_TABLE_INDEX], loaded, "");
+            rows += readTable(conn, TABLES[NPC_TABLE_INDEX], loaded, "npc.");
+            conn.commit();
+        } catch (SQLException e) {
+            disconnect();
+            e.printStackTrace();
+            return false;
+        }
+        synchronized (this) {
+            tree = loaded;
+            changed.clear();
+        }
+        if (rows == 0 && yamlFile != null && yamlFile.exists()) {
+            try {
+                YamlConfiguration config = new YamlConfiguration();
+                config.loadFromString(Files.toString(yamlFile, Charsets.UTF_8));
+                StorageHelper.copy(config, loaded);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            } catch (InvalidConfigurationException e) {
+                e.printStackTrace();
+                return false;
+            }
+            for (DataKey key : loaded.getSubKeys()) {
+                if (!key.name().equals("npc"))
+                    markChanged(key.name());
+            }
+            for (DataKey key : loaded.getRelative("npc").getSubKeys())
+                markChanged("npc." + key.name());
+            // the imported rows stay marked, so a failed write is retried by
+            // the next save
+            try {
+                save();
+                Messaging.logTr(Messages.DATABASE_IMPORTED, yamlFile.getName());
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void markChanged(String path) {
+        changed.add(path);
+    }
+
+    private int readTable(Connection conn, String table, DataKey into, String prefix) throws SQLException {
+        int rows = 0;
+        Statement statement = conn.createStatement();
+        try {
+            ResultSet results = statement.executeQuery("SELECT id, kind, data FROM " + table);
+            while (results.next()) {
+                String key = prefix + results.getString(1);
+                YamlConfiguration config = new YamlConfiguration();
+                try {
+                    config.loadFromString(results.getString(3));
+                } catch (InvalidConfigurationException e) {
+                    Messaging.severe("Skipping invalid database row", key + ":", e.getMessage());
+                    continue;
+                }
+                if (results.getInt(2) == SCALAR_ROW) {
+                    into.setRaw(key, config.get(VALUE_KEY));
+                } else
+                    StorageHelper.copy(config, into.getRelative(key));
+                rows++;
+            }
+        } finally {
+            statement.close();
+        }
+        return rows;
+    }
+
+    @Override
+    public synchronized void save() {
+        if (changed.isEmpty())
+            return;
+        // rows hold whole NPCs or top-level keys
+        Set<String> rows = Sets.newHashSet();
+        for (String path : changed) {
+            String[] parts = path.split("\\.");
+            rows.add(parts[0].equals("npc") && parts.length > 1 ? "npc." + parts[1] : parts[0]);
+        }
+        try {
+            Connection conn = connect();
+            try {
+                for (String row : rows) {
+                    boolean npc = row.startsWith("npc.");
+                    String key = npc ? row.substring(4) : row;
+                    int table = npc ? NPC_TABLE_INDEX : GLOBAL_TABLE_INDEX;
+                    deletes[table].setString(1, key);
+                    deletes[table].addBatch();
+                    if (tree.keyExists(row))
+                        addRow(inserts[table], key, tree.getRelative(row));
+                }
+                for (int i = 0; i < TABLES.length; i++) {
+                    deletes[i].executeBatch();
+                    inserts[i].executeBatch();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                try {
+                    conn.rollback();
+                } catch (SQLException rollback) {
+                    // the connection is dropped below, which discards the
+                    // transaction anyway; the original failure is reported
+                    Messaging.debug("Rollback failed:", rollback.getMessage());
+                }
+                throw e;
+            }
+            Messaging.debug("Wrote", rows.size(), "rows to the database in one transaction");
+            changed.clear();
+        } catch (SQLException e) {
+            // the changes stay marked; thrown so that the caller knows to retry
+            disconnect();
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SQLStorage {url=" + url + "}";
+    }
+
+    private static void close(Statement statement) {
+        if (statement == null)
+            return;
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // the connection is being closed anyway
+        }
+    }
+
+    private static final int GLOBAL_TABLE_INDEX = 0;
+    private static final int NPC_TABLE_INDEX = 1;
+    private static final int SCALAR_ROW = 1;
+    private static final int SECTION_ROW = 0;
+    private static final String[] TABLES = { "citizens_global", "citizens_npcs" };
+    private static final String VALUE_KEY = "value";
+}
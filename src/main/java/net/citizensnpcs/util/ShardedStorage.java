@@ -0,0 +1,314 @@
+package net.citizensnpcs.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.api.util.MemoryDataKey;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+/**
+ * Splits NPCs into one YAML file per world and 512x512 block region, based on
+ * their stored location, so that a save only rewrites the files containing
+ * changed NPCs. Keys outside of <code>npc</code> are kept in a separate global
+ * file. The files are parsed in parallel when loading.
+ *
+ * Each shard also records a save sequence number for each of its NPCs, which
+ * increases every time the NPC is saved. If a crash interrupts moving an NPC
+ * between shards and leaves two copies, the copy with the higher number is
+ * kept when loading.
+ *
+ * If the shard folder does not exist yet, the single-file YAML saves are
+ * loaded instead, written out as shards and renamed out of the way once every
+ * shard has been written.
+ */
+public class ShardedStorage implements IncrementalStorage {
+    private final Set<String> changed = Sets.newHashSet();
+    private final Set<String> dirtyShards = Sets.newHashSet();
+    private final File folder;
+    private final String header;
+    private final File legacyFile;
+    private long lastSequence;
+    private final SetMultimap<String, String> npcsByShard = HashMultimap.create();
+    private final Map<String, Long> sequenceByNPC = Maps.newHashMap();
+    private final Map<String, String> shardByNPC = Maps.newHashMap();
+    private MemoryDataKey tree = new MemoryDataKey();
+
+    public ShardedStorage(File folder, File legacyFile, String header) {
+        this.folder = folder;
+        this.legacyFile = legacyFile;
+        this.header = header;
+    }
+
+    private void assign(String id, String shard) {
+        String old = shardByNPC.get(id);
+        if (old != null) {
+            if (old.equals(shard))
+                return;
+            npcsByShard.remove(old, id);
+            dirtyShards.add(old);
+        }
+        if (shard == null) {
+            shardByNPC.remove(id);
+            return;
+        }
+        shardByNPC.put(id, shard);
+        npcsByShard.put(shard, id);
+        dirtyShards.add(shard);
+    }
+
+    private void findShards(File directory, String prefix, List<String> found) {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                findShards(file, prefix + file.getName() + '/', found);
+            } else if (file.getName().endsWith(".yml"))
+                found.add(prefix + file.getName());
+        }
+    }
+
+    @Override
+    public DataKey getKey(String root) {
+        return tree.getRelative(root);
+    }
+
+    @Override
+    public boolean load() {
+        boolean migrate = !folder.exists() && legacyFile.exists();
+        List<String> shards = Lists.newArrayList();
+        if (migrate) {
+            shards.add(legacyFile.getName());
+        } else
+            findShards(folder, "", shards);
+        final File base = migrate ? legacyFile.getParentFile() : folder;
+
+        MemoryDataKey loaded = new MemoryDataKey();
+        Map<String, String> loadedFrom = Maps.newHashMap();
+        Map<String, Long> sequences = Maps.newHashMap();
+        Set<String> stale = Sets.newHashSet();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,
+                Math.min(shards.size(), Runtime.getRuntime().availableProcessors())));
+        try {
+            List<Future<YamlConfiguration>> parsed = Lists.newArrayListWithCapacity(shards.size());
+            for (final String shard : shards) {
+                parsed.add(pool.submit(new Callable<YamlConfiguration>() {
+                    @Override
+                    public YamlConfiguration call() throws Exception {
+                        YamlConfiguration config = new YamlConfiguration();
+                        config.loadFromString(Files.toString(new File(base, shard), Charsets.UTF_8));
+                        return config;
+                    }
+                }));
+            }
+            for (int i = 0; i < shards.size(); i++)
+                merge(shards.get(i), parsed.get(i).get(), loaded, loadedFrom, sequences, stale);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            return false;
+        } finally {
+            pool.shutdown();
+        }
+
+        synchronized (this) {
+            tree = loaded;
+            changed.clear();
+            dirtyShards.clear();
+            if (!migrate)
+                dirtyShards.addAll(stale);
+            npcsByShard.clear();
+            shardByNPC.clear();
+            sequenceByNPC.clear();
+            sequenceByNPC.putAll(sequences);
+            lastSequence = 0;
+            for (long sequence : sequences.values())
+                lastSequence = Math.max(lastSequence, sequence);
+            for (DataKey npc : tree.getRelative("npc").getSubKeys()) {
+                String shard = getShard(npc);
+                shardByNPC.put(npc.name(), shard);
+                npcsByShard.put(shard, npc.name());
+                String from = loadedFrom.get(npc.name());
+                if (!shard.equals(from)) {
+                    // stored in the wrong shard, move it on the next save
+                    dirtyShards.add(shard);
+                    if (!migrate)
+                        dirtyShards.add(from);
+                }
+            }
+        }
+        if (migrate) {
+            dirtyShards.add(GLOBAL_SHARD);
+            // keep the legacy file in place until the shards are complete
+            try {
+                save();
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+                return false;
+            }
+            File backup = new File(legacyFile.getPath() + ".migrated");
+            if (!legacyFile.renameTo(backup))
+                return false;
+            Messaging.logTr(Messages.SHARDED_STORAGE_MIGRATED, legacyFile.getName(), shardByNPC.size(),
+                    npcsByShard.keySet().size());
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void markChanged(String path) {
+        changed.add(path);
+    }
+
+    /**
+     * Adds the contents of a parsed shard to the tree. If an NPC appears in
+     * two shards, as can happen if a crash interrupts moving it between
+     * regions, the copy with the higher save sequence number wins and the
+     * shard holding the other copy is added to <code>stale</code>. Copies
+     * saved before sequence numbers were recorded fall back to preferring the
+     * shard matching the NPC's location.
+     */
+    private void merge(String shard, YamlConfiguration config, MemoryDataKey into, Map<String, String> loadedFrom,
+            Map<String, Long> sequences, Set<String> stale) {
+        for (String key : config.getKeys(false)) {
+            if (key.equals("npc") || key.equals(SEQUENCE_KEY))
+                continue;
+            Object value = config.get(key);
+            if (value instanceof ConfigurationSection) {
+                StorageHelper.copy((ConfigurationSection) value, into.getRelative(key));
+            } else
+                into.setRaw(key, value);
+        }
+        ConfigurationSection npcs = config.getConfigurationSection("npc");
+        if (npcs == null)
+            return;
+        for (String id : npcs.getKeys(false)) {
+            ConfigurationSection data = npcs.getConfigurationSection(id);
+            if (data == null)
+                continue;
+            DataKey key = into.getRelative("npc." + id);
+            long sequence = config.getLong(SEQUENCE_KEY + '.' + id, 0);
+            String previous = loadedFrom.get(id);
+            if (previous != null) {
+                long previousSequence = sequences.get(id);
+                boolean keepPrevious = sequence != previousSequence ? previousSequence > sequence : previous
+                        .equals(getShard(key));
+                if (keepPrevious) {
+                    stale.add(shard);
+                    continue;
+                }
+                stale.add(previous);
+            }
+            into.removeKey("npc." + id);
+            StorageHelper.copy(data, key);
+            loadedFrom.put(id, shard);
+            sequences.put(id, sequence);
+        }
+    }
+
+    @Override
+    public synchronized void save() {
+        for (String path : changed) {
+            if (!path.startsWith("npc.")) {
+                dirtyShards.add(GLOBAL_SHARD);
+                continue;
+            }
+            String id = path.split("\\.")[1];
+            String npcPath = "npc." + id;
+            String shard = tree.keyExists(npcPath) ? getShard(tree.getRelative(npcPath)) : null;
+            assign(id, shard);
+            if (shard != null) {
+                dirtyShards.add(shard);
+                sequenceByNPC.put(id, ++lastSequence);
+            } else
+                sequenceByNPC.remove(id);
+        }
+        changed.clear();
+
+        int written = 0;
+        IOException failure = null;
+        for (String shard : Lists.newArrayList(dirtyShards)) {
+            try {
+                writeShard(shard);
+                dirtyShards.remove(shard);
+                written++;
+            } catch (IOException e) {
+                // leave it dirty so the next save tries again
+                failure = e;
+            }
+        }
+        Messaging.debug("Wrote", written, "NPC storage shards");
+        if (failure != null)
+            throw new IllegalStateException(failure.getMessage(), failure);
+    }
+
+    @Override
+    public String toString() {
+        return "ShardedStorage {" + folder + "}";
+    }
+
+    private void writeShard(String shard) throws IOException {
+        YamlConfiguration config = new YamlConfiguration();
+        config.options().header(header);
+        if (shard.equals(GLOBAL_SHARD)) {
+            for (DataKey sub : tree.getSubKeys()) {
+                if (sub.name().equals("npc"))
+                    continue;
+                if (sub.getSubKeys().iterator().hasNext()) {
+                    StorageHelper.copy(sub, config.createSection(sub.name()));
+                } else
+                    config.set(sub.name(), sub.getRaw(""));
+            }
+        }
+        for (String id : npcsByShard.get(shard)) {
+            StorageHelper.copy(tree.getRelative("npc." + id), config.createSection("npc." + id));
+            Long sequence = sequenceByNPC.get(id);
+            if (sequence != null)
+                config.set(SEQUENCE_KEY + '.' + id, sequence);
+        }
+        File file = new File(folder, shard);
+        if (config.getKeys(false).isEmpty()) {
+            if (file.exists() && !file.delete())
+                throw new IOException("couldn't delete empty shard " + file);
+            return;
+        }
+        file.getParentFile().mkdirs();
+        StorageHelper.writeAtomically(file, config.saveToString());
+    }
+
+    private static String getShard(DataKey npc) {
+        DataKey location = npc.getRelative("traits.location");
+        String world = location.getString("world", "");
+        if (world.isEmpty())
+            return UNPLACED_SHARD;
+        int regionX = (int) Math.floor(location.getDouble("x", 0)) >> REGION_SHIFT;
+        int regionZ = (int) Math.floor(location.getDouble("z", 0)) >> REGION_SHIFT;
+        return world + "/r." + regionX + '.' + regionZ + ".yml";
+    }
+
+    private static final String GLOBAL_SHARD = "global.yml";
+    private static final int REGION_SHIFT = 9;
+    private static final String SEQUENCE_KEY = "save-sequence";
+    private static final String UNPLACED_SHARD = "unplaced.yml";
+}
@@ -0,0 +1,117 @@
+package net.citizensnpcs.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import net.citizensnpcs.api.util.DataKey;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import com.google.common.base.Charsets;
+
+public class StorageHelper {
+    // Static class for copying storage trees and writing storage files
+    private StorageHelper() {
+    }
+
+    /**
+     * Copies every value below <code>from</code> to the same relative path
+     * below <code>to</code>. Existing values in <code>to</code> are overwritten
+     * but not removed.
+     */
+    public static void copy(DataKey from, DataKey to) {
+        boolean leaf = true;
+        for (DataKey sub : from.getSubKeys()) {
+            leaf = false;
+            copy(sub, to.getRelative(sub.name()));
+        }
+        if (!leaf)
+            return;
+        Object value = from.getRaw("");
+        if (value != null && !(value instanceof ConfigurationSection))
+            to.setRaw("", value);
+    }
+
+    /**
+     * Copies a configuration section, such as a loaded YAML document, into a
+     * data key.
+     */
+    public static void copy(ConfigurationSection from, DataKey to) {
+        for (String key : from.getKeys(false)) {
+            Object value = from.get(key);
+            if (value instanceof ConfigurationSection) {
+                copy((ConfigurationSection) value, to.getRelative(key));
+            } else
+                to.setRaw(key, value);
+        }
+    }
+
+    /**
+     * Copies a data key into a configuration section, such as a YAML document
+     * to be written out.
+     */
+    public static void copy(DataKey from, ConfigurationSection to) {
+        for (DataKey sub : from.getSubKeys()) {
+            if (sub.getSubKeys().iterator().hasNext()) {
+                copy(sub, to.createSection(sub.name()));
+                continue;
+            }
+            Object value = sub.getRaw("");
+            if (value != null && !(value instanceof ConfigurationSection))
+                to.set(sub.name(), value);
+        }
+    }
+
+    /**
+     * Returns a hash of every name and value below the key, so that two saves
+     * can be compared without keeping the first. Keys written in a different
+     * order hash differently.
+     */
+    public static long hash(DataKey key) {
+        long hash = 17;
+        for (DataKey sub : key.getSubKeys()) {
+            hash = hash * 1000003 + sub.name().hashCode();
+            hash = hash * 1000003 + hash(sub);
+        }
+        Object value = key.getRaw("");
+        if (value != null && !(value instanceof ConfigurationSection))
+            hash = hash * 1000003 + value.hashCode();
+        return hash;
+    }
+
+    /**
+     * Returns the temporary file used by
+     * {@link #writeAtomically(File, String)} for the given file. It only
+     * exists if a write was interrupted.
+     */
+    public static File getTempFile(File file) {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * Replaces the contents of the file so that a crash leaves either the old
+     * or the new contents. The data is written and synced to a temporary file
+     * which is then renamed over the original.
+     */
+    public static void writeAtomically(File file, byte[] contents) throws IOException {
+        File temp = getTempFile(file);
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            stream.write(contents);
+            stream.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!temp.renameTo(file)) {
+            // renaming over an existing file fails on some platforms
+            if (!file.delete() || !temp.renameTo(file))
+                throw new IOException("couldn't replace " + file + " with " + temp);
+        }
+    }
+
+    public static void writeAtomically(File file, String contents) throws IOException {
+        writeAtomically(file, contents.getBytes(Charsets.UTF_8));
+    }
+}
@@ -5,6 +5,8 @@ import java.util.Random;
 import net.citizensnpcs.api.event.NPCCollisionEvent;
 import net.citizensnpcs.api.event.NPCPushEvent;
 import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.api.trait.Trait;
+import net.citizensnpcs.npc.CitizensNPC;
 import net.minecraft.server.v1_4_5.EntityLiving;
 import net.minecraft.server.v1_4_5.Packet;
 
@@ -118,6 +120,24 @@ public class Util {
         return type;
     }
 
+    /**
+     * Marks the NPC's own saved data, such as persistent metadata, as changed
+     * so that it is written on the next incremental save.
+     */
+    public static void markDirty(NPC npc) {
+        if (npc instanceof CitizensNPC)
+            ((CitizensNPC) npc).markDirty();
+    }
+
+    /**
+     * Marks the trait's saved state as changed so that it is written on the
+     * next incremental save.
+     */
+    public static void markDirty(NPC npc, Trait trait) {
+        if (npc instanceof CitizensNPC)
+            ((CitizensNPC) npc).markDirty(trait);
+    }
+
     public static boolean matchesItemInHand(Player player, String setting) {
         String parts = setting;
         if (parts.contains("*"))
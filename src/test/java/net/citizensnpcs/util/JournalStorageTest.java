@@ -0,0 +1,216 @@
+package net.citizensnpcs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import net.citizensnpcs.api.util.DataKey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.google.common.io.Files;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Messaging.class)
+public class JournalStorageTest {
+    private File folder;
+    private File journal;
+    private File snapshot;
+
+    private void assertNPC(JournalStorage storage, int id) {
+        DataKey key = storage.getKey("npc." + id);
+        assertEquals("npc" + id, key.getString("name"));
+        assertEquals(id * 10, key.getInt("traits.location.x"));
+        assertEquals(id * 20, key.getInt("traits.location.z"));
+    }
+
+    private JournalStorage load() {
+        JournalStorage storage = new JournalStorage(snapshot, "test", Long.MAX_VALUE);
+        assertTrue(storage.load());
+        return storage;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        PowerMockito.mockStatic(Messaging.class);
+        folder = Files.createTempDir();
+        snapshot = new File(folder, "saves.yml");
+        journal = new File(folder, "saves.yml.journal");
+    }
+
+    private void store(JournalStorage storage, int id) {
+        DataKey key = storage.getKey("npc." + id);
+        key.setString("name", "npc" + id);
+        key.setInt("traits.location.x", id * 10);
+        key.setInt("traits.location.z", id * 20);
+        storage.markChanged("npc." + id);
+        storage.save();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : folder.listFiles()) {
+            file.delete();
+        }
+        folder.delete();
+    }
+
+    @Test
+    public void testAppendAfterTornRecord() throws IOException {
+        JournalStorage storage = load();
+        store(storage, 1);
+        store(storage, 2);
+        truncate(journal, journal.length() - 3);
+
+        storage = load();
+        store(storage, 3);
+
+        storage = load();
+        assertNPC(storage, 1);
+        assertFalse(storage.getKey("npc").keyExists("2"));
+        assertNPC(storage, 3);
+    }
+
+    @Test
+    public void testCorruptRecordIsDropped() throws IOException {
+        JournalStorage storage = load();
+        store(storage, 1);
+        long valid = journal.length();
+        store(storage, 2);
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        try {
+            file.seek(journal.length() - 1);
+            int last = file.read();
+            file.seek(journal.length() - 1);
+            file.write(last ^ 0xFF);
+        } finally {
+            file.close();
+        }
+
+        storage = load();
+        assertNPC(storage, 1);
+        assertFalse(storage.getKey("npc").keyExists("2"));
+        assertEquals(valid, journal.length());
+    }
+
+    @Test
+    public void testCrashAfterSnapshotRename() throws IOException {
+        byte[][] files = prepareCompaction();
+        Files.write(files[1], snapshot);
+        Files.write(files[2], journal);
+
+        assertCompacted(load());
+    }
+
+    @Test
+    public void testCrashBeforeSnapshotRename() throws IOException {
+        byte[][] files = prepareCompaction();
+        Files.write(files[0], snapshot);
+        Files.write(files[2], journal);
+        byte[] torn = new byte[files[1].length / 2];
+        System.arraycopy(files[1], 0, torn, 0, torn.length);
+        Files.write(torn, StorageHelper.getTempFile(snapshot));
+
+        assertCompacted(load());
+    }
+
+    @Test
+    public void testCrashBetweenDeleteAndRename() throws IOException {
+        byte[][] files = prepareCompaction();
+        Files.write(files[1], StorageHelper.getTempFile(snapshot));
+        Files.write(files[2], journal);
+
+        assertCompacted(load());
+    }
+
+    @Test
+    public void testReplaysJournalOverSnapshot() {
+        JournalStorage storage = load();
+        for (int i = 0; i < 5; i++) {
+            store(storage, i);
+        }
+        storage.getKey("npc").removeKey("3");
+        storage.markChanged("npc.3");
+        storage.save();
+
+        storage = load();
+        for (int i = 0; i < 5; i++) {
+            if (i == 3) {
+                assertFalse(storage.getKey("npc").keyExists("3"));
+            } else
+                assertNPC(storage, i);
+        }
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws IOException {
+        JournalStorage storage = load();
+        store(storage, 1);
+        long valid = journal.length();
+        store(storage, 2);
+        // cut the second record's header and its body
+        for (long length : new long[] { valid + 3, journal.length() - 1 }) {
+            byte[] journalled = Files.toByteArray(journal);
+            truncate(journal, length);
+
+            storage = load();
+            assertNPC(storage, 1);
+            assertFalse(storage.getKey("npc").keyExists("2"));
+            assertEquals(valid, journal.length());
+            Files.write(journalled, journal);
+        }
+    }
+
+    private void assertCompacted(JournalStorage storage) {
+        for (int i = 0; i < 4; i++) {
+            assertNPC(storage, i);
+        }
+    }
+
+    /**
+     * Stores NPCs 0 to 3, with all but the first only in the journal, and
+     * then compacts. Returns the snapshot before compaction, the snapshot
+     * after it and the journal before it, which together make up every state
+     * a crash during compaction can leave behind.
+     */
+    private byte[][] prepareCompaction() throws IOException {
+        JournalStorage storage = load();
+        // the first save writes a snapshot; the rest are only journalled
+        store(storage, 0);
+        byte[] oldSnapshot = Files.toByteArray(snapshot);
+        assertEquals(0, journal.length());
+        store(storage, 1);
+        store(storage, 2);
+        store(storage, 3);
+        byte[] oldJournal = Files.toByteArray(journal);
+
+        JournalStorage compacting = new JournalStorage(snapshot, "test", 0);
+        assertTrue(compacting.load());
+        compacting.save();
+        assertEquals(0, journal.length());
+        byte[] newSnapshot = Files.toByteArray(snapshot);
+        for (File file : folder.listFiles()) {
+            file.delete();
+        }
+        return new byte[][] { oldSnapshot, newSnapshot, oldJournal };
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            access.setLength(length);
+        } finally {
+            access.close();
+        }
+    }
+}
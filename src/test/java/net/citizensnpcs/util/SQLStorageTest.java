@@ -0,0 +1,150 @@
+package net.citizensnpcs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+import net.citizensnpcs.api.util.DataKey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Messaging.class)
+// the driver must come from the same class loader as DriverManager
+@PowerMockIgnore("org.h2.*")
+public class SQLStorageTest {
+    private File folder;
+    // keeps the in-memory database alive between storages
+    private Connection keepAlive;
+    private String url;
+    private File yaml;
+
+    private SQLStorage load() {
+        SQLStorage storage = new SQLStorage("org.h2.Driver", url, "sa", "", yaml);
+        assertTrue(storage.load());
+        return storage;
+    }
+
+    @Before
+    public void setUp() throws ClassNotFoundException, SQLException {
+        Class.forName("org.h2.Driver");
+        PowerMockito.mockStatic(Messaging.class);
+        folder = Files.createTempDir();
+        yaml = new File(folder, "saves.yml");
+        url = "jdbc:h2:mem:citizens" + System.nanoTime();
+        keepAlive = DriverManager.getConnection(url, "sa", "");
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        keepAlive.close();
+        for (File file : folder.listFiles()) {
+            file.delete();
+        }
+        folder.delete();
+    }
+
+    @Test
+    public void testImportsYaml() throws IOException {
+        Files.write("npc:\n  '0':\n    name: imported\n    traits:\n      spawned: true\nlast-created-npc-id: 0\n",
+                yaml, Charsets.UTF_8);
+        load();
+
+        yaml.delete();
+        SQLStorage storage = load();
+        assertEquals("imported", storage.getKey("npc.0").getString("name"));
+        assertTrue(storage.getKey("npc.0").getBoolean("traits.spawned"));
+        assertEquals(0, storage.getKey("").getInt("last-created-npc-id", -1));
+    }
+
+    @Test
+    public void testRemovedRowIsDeleted() {
+        SQLStorage storage = load();
+        store(storage, 1);
+        store(storage, 2);
+        storage.getKey("npc").removeKey("1");
+        storage.markChanged("npc.1");
+        storage.save();
+
+        storage = load();
+        assertFalse(storage.getKey("npc").keyExists("1"));
+        assertEquals("npc2", storage.getKey("npc.2").getString("name"));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        SQLStorage storage = load();
+        for (int i = 0; i < 5; i++) {
+            store(storage, i);
+        }
+
+        storage = load();
+        for (int i = 0; i < 5; i++) {
+            DataKey key = storage.getKey("npc." + i);
+            assertEquals("npc" + i, key.getString("name"));
+            assertEquals(i * 10, key.getInt("traits.location.x"));
+        }
+    }
+
+    @Test
+    public void testScalarRow() {
+        SQLStorage storage = load();
+        storage.getKey("").setInt("last-created-npc-id", 7);
+        storage.markChanged("last-created-npc-id");
+        storage.save();
+
+        storage = load();
+        assertEquals(7, storage.getKey("").getInt("last-created-npc-id"));
+    }
+
+    @Test
+    public void testSubKeyNamedValue() {
+        SQLStorage storage = load();
+        storage.getKey("npc.1").setString("value", "kept");
+        storage.getKey("npc.1").setString("name", "npc1");
+        storage.getKey("settings").setInt("value", 3);
+        storage.markChanged("npc.1");
+        storage.markChanged("settings");
+        storage.save();
+
+        storage = load();
+        assertEquals("kept", storage.getKey("npc.1").getString("value"));
+        assertEquals("npc1", storage.getKey("npc.1").getString("name"));
+        assertEquals(3, storage.getKey("settings").getInt("value"));
+    }
+
+    @Test
+    public void testUnmarkedChangesAreNotWritten() {
+        SQLStorage storage = load();
+        store(storage, 1);
+        storage.getKey("npc.1").setString("name", "changed");
+        storage.save();
+
+        storage = load();
+        assertEquals("npc1", storage.getKey("npc.1").getString("name"));
+    }
+
+    private static void store(SQLStorage storage, int id) {
+        DataKey key = storage.getKey("npc." + id);
+        key.setString("name", "npc" + id);
+        key.setInt("traits.location.x", id * 10);
+        storage.markChanged("npc." + id);
+        storage.save();
+    }
+}